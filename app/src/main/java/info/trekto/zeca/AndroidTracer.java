@@ -0,0 +1,34 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+import android.os.Trace;
+
+/**
+ * Shows the {@link PipelineStage}s as sections in systrace / Android Studio profiler.
+ */
+class AndroidTracer implements Instrumentation.Tracer {
+    @Override
+    public void beginSection(String name) {
+        Trace.beginSection(name);
+    }
+
+    @Override
+    public void endSection() {
+        Trace.endSection();
+    }
+}
@@ -0,0 +1,175 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static info.trekto.zeca.ImagePreprocessor.convertToBitPackedImage;
+
+/**
+ * Preprocesses many images in parallel for a batched inference (see {@link Classifier#classifyBatch(List)}).<p>
+ * The images are split into contiguous slices, one task per slice. Each thread uses its own
+ * {@link PreprocessingWorkspace} and packs its images into its part of the shared batch,
+ * so the threads never write the same image. The packed batch takes 128 bytes per image,
+ * the classifier looks the images up in its cache and unpacks only the misses into the model input.<p>
+ * Runs on an ExecutorService because ForkJoinPool needs API 21.
+ */
+class BatchPreprocessor {
+    private final ExecutorService executor;
+    private final int parallelism;
+    private final boolean ownsExecutor;
+
+    // Workspaces are not thread-safe, each thread of the executor gets one and keeps it
+    private final ThreadLocal<PreprocessingWorkspace> workspaces = new ThreadLocal<PreprocessingWorkspace>() {
+        @Override
+        protected PreprocessingWorkspace initialValue() {
+            return new PreprocessingWorkspace();
+        }
+    };
+
+    /**
+     * Uses its own pool with one thread per core.
+     */
+    BatchPreprocessor() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    private BatchPreprocessor(int threads) {
+        this(Executors.newFixedThreadPool(threads), threads, true);
+    }
+
+    /**
+     * @param executor    Runs the slices. Not shut down by {@link #shutdown()}.
+     * @param parallelism Number of slices a batch is split into, normally the number of threads of the executor.
+     */
+    BatchPreprocessor(ExecutorService executor, int parallelism) {
+        this(executor, parallelism, false);
+    }
+
+    private BatchPreprocessor(ExecutorService executor, int parallelism, boolean ownsExecutor) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+        }
+        this.executor = executor;
+        this.parallelism = parallelism;
+        this.ownsExecutor = ownsExecutor;
+    }
+
+    /**
+     * Preprocess the images and pack each of them into the image with the same index.
+     * Returns when all of them are written. Nothing writes into the images after this returns, even when it throws,
+     * so the caller can reuse them right away.
+     *
+     * @param bitmaps Images, each containing one digit. Only read.
+     * @param images  At least as many images as bitmaps. Overwritten.
+     * @throws InterruptedException If interrupted while waiting. The slices stop after their current image
+     *                              and are waited for before it is thrown.
+     */
+    void preprocess(final List<Bitmap> bitmaps, final BitPackedImage[] images) throws InterruptedException {
+        int n = bitmaps.size();
+        int slices = Math.min(parallelism, n);
+        final AtomicBoolean abandoned = new AtomicBoolean();
+        // Counted down by every slice when it stops, also when it fails or is abandoned
+        final CountDownLatch stopped = new CountDownLatch(slices);
+        List<Future<Void>> futures = new ArrayList<>(slices);
+        for (int i = 0; i < slices; i++) {
+            final int start = (int) ((long) n * i / slices);
+            final int end = (int) ((long) n * (i + 1) / slices);
+            Callable<Void> task = new Callable<Void>() {
+                @Override
+                public Void call() {
+                    try {
+                        PreprocessingWorkspace workspace = workspaces.get();
+                        for (int image = start; image < end && !abandoned.get(); image++) {
+                            convertToBitPackedImage(bitmaps.get(image), workspace, images[image]);
+                        }
+                        return null;
+                    } finally {
+                        stopped.countDown();
+                    }
+                }
+            };
+            try {
+                futures.add(executor.submit(task));
+            } catch (RejectedExecutionException ex) {
+                // This slice and the next ones never run
+                abandoned.set(true);
+                for (int notSubmitted = i; notSubmitted < slices; notSubmitted++) {
+                    stopped.countDown();
+                }
+                awaitUninterruptibly(stopped);
+                throw ex;
+            }
+        }
+
+        try {
+            stopped.await();
+        } catch (InterruptedException ex) {
+            // Not cancelled: a slice cancelled before it runs would never count down
+            abandoned.set(true);
+            awaitUninterruptibly(stopped);
+            throw ex;
+        }
+
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+            }
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stop the threads if the executor was created by this preprocessor.
+     */
+    void shutdown() {
+        if (ownsExecutor) {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,355 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+import android.hardware.Camera;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Classifies the digit in the middle of the camera preview continuously.<p>
+ * Preview frames (NV21) are classified on a single background thread with the active model of a {@link ModelRegistry}.
+ * Only the luminance (Y) plane of the region of interest is used, so there is no monochrome conversion.
+ * The newest frame always replaces the one waiting to be classified: when inference is slower than
+ * the camera, frames are dropped instead of queued, so the results do not lag behind the preview.<p>
+ * Uses android.hardware.Camera because camera2 needs API 21.
+ * Methods must be called from the UI thread. A stream can be started only once.
+ */
+@SuppressWarnings("deprecation")
+class CameraStream implements Camera.PreviewCallback {
+    private static final String TAG = "CameraStream";
+    private static final int PREVIEW_WIDTH = 640;
+    private static final int PREVIEW_HEIGHT = 480;
+    private static final int CALLBACK_BUFFERS = 3;
+    private static final int CACHE_CAPACITY = 16;
+    private static final long FPS_WINDOW_NANOS = 1000000000L;
+
+    interface Listener {
+        /**
+         * Called on the UI thread.
+         *
+         * @param classification The classification or null if the model is not loaded.
+         * @param fps            Classified frames per second over the last second.
+         * @param latencyMillis  Time from the arrival of the frame to the delivery of its result.
+         * @param droppedFrames  Frames dropped so far because the classifier was busy.
+         */
+        void onFrameClassified(Classification classification, float fps, long latencyMillis, int droppedFrames);
+
+        /**
+         * Called on the UI thread.
+         *
+         * @param tr What went wrong.
+         */
+        void onError(Throwable tr);
+    }
+
+    /**
+     * One per callback buffer, reused with it. Passing it through {@link #latest} publishes its arrival time.
+     */
+    private static class Frame {
+        final byte[] data;
+        long arrived;
+
+        Frame(byte[] data) {
+            this.data = data;
+        }
+    }
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicReference<Frame> latest = new AtomicReference<>();
+    private final AtomicInteger dropped = new AtomicInteger();
+    private final Listener listener;
+    private final float roiFraction;
+    private volatile boolean running;
+    private Camera camera;
+    private final Frame[] frames = new Frame[CALLBACK_BUFFERS];
+
+    // Set before the preview starts
+    private volatile int previewWidth;
+    private volatile int previewHeight;
+    private volatile int rotation;
+
+    private final ModelRegistry models;
+
+    // Used only on the executor thread
+    private final PreprocessingWorkspace workspace = new PreprocessingWorkspace();
+    // Its own cache, so a few seconds of frames do not evict the results of the picked images.
+    // Consecutive frames of a still digit often give the same image, so a small one is enough.
+    private final ResultCache cache = new ResultCache(CACHE_CAPACITY);
+    private byte[] rotated = new byte[0];
+    private long windowStart;
+    private int windowFrames;
+    private float fps;
+
+    private final Runnable processLatest = new Runnable() {
+        @Override
+        public void run() {
+            Frame frame = latest.getAndSet(null);
+            if (frame == null || !running) {
+                return;
+            }
+            try {
+                process(frame);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (Throwable tr) {
+                deliverError(tr);
+            } finally {
+                recycle(frame.data);
+            }
+        }
+    };
+
+    /**
+     * @param models      Classifies the frames. Needs a free interpreter for the stream.
+     * @param listener    Receives the results.
+     * @param roiFraction Side of the square region of interest in the middle of the frame,
+     *                    as a fraction of the shorter side of the frame (0, 1].
+     */
+    CameraStream(ModelRegistry models, Listener listener, float roiFraction) {
+        if (roiFraction <= 0 || roiFraction > 1) {
+            throw new IllegalArgumentException("Region of interest fraction must be in (0, 1]: " + roiFraction);
+        }
+        this.models = models;
+        this.listener = listener;
+        this.roiFraction = roiFraction;
+    }
+
+    /**
+     * Open the back camera and start the preview.
+     *
+     * @param preview         Where the preview is shown, e.g. from a TextureView.
+     * @param displayRotation Rotation of the display in degrees (0 for the portrait only MainActivity).
+     * @throws IOException If the preview cannot be shown.
+     */
+    void start(SurfaceTexture preview, int displayRotation) throws IOException {
+        int cameraId = findBackCamera();
+        camera = Camera.open(cameraId);
+        try {
+            Camera.CameraInfo info = new Camera.CameraInfo();
+            Camera.getCameraInfo(cameraId, info);
+            rotation = (info.orientation - displayRotation + 360) % 360;
+            camera.setDisplayOrientation(rotation);
+
+            Camera.Parameters parameters = camera.getParameters();
+            Camera.Size size = findPreviewSize(parameters.getSupportedPreviewSizes());
+            parameters.setPreviewSize(size.width, size.height);
+            parameters.setPreviewFormat(ImageFormat.NV21);
+            if (parameters.getSupportedFocusModes().contains(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE)) {
+                parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE);
+            }
+            camera.setParameters(parameters);
+            previewWidth = size.width;
+            previewHeight = size.height;
+
+            int frameBytes = size.width * size.height * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
+            for (int i = 0; i < CALLBACK_BUFFERS; i++) {
+                frames[i] = new Frame(new byte[frameBytes]);
+                camera.addCallbackBuffer(frames[i].data);
+            }
+            camera.setPreviewCallbackWithBuffer(this);
+            camera.setPreviewTexture(preview);
+            running = true;
+            camera.startPreview();
+        } catch (IOException | RuntimeException ex) {
+            stop();
+            throw ex;
+        }
+    }
+
+    /**
+     * Stop the preview, release the camera and stop the background thread once it is free.
+     */
+    void stop() {
+        if (executor.isShutdown()) {
+            return;
+        }
+        running = false;
+        if (camera != null) {
+            camera.setPreviewCallbackWithBuffer(null);
+            camera.stopPreview();
+            camera.release();
+            camera = null;
+        }
+        latest.set(null);
+        mainHandler.removeCallbacksAndMessages(null);
+        executor.shutdown();
+    }
+
+    /**
+     * Called on the UI thread for every preview frame. Must be fast.
+     */
+    @Override
+    public void onPreviewFrame(byte[] data, Camera camera) {
+        if (!running) {
+            return;
+        }
+        Frame frame = frameOf(data);
+        frame.arrived = System.nanoTime();
+        Frame old = latest.getAndSet(frame);
+        if (old != null) {
+            // Not classified yet. The new frame takes its place.
+            dropped.incrementAndGet();
+            camera.addCallbackBuffer(old.data);
+        } else {
+            executor.execute(processLatest);
+        }
+    }
+
+    /**
+     * @return The frame of the callback buffer. The camera gives back only the buffers added in {@link #start}.
+     */
+    private Frame frameOf(byte[] data) {
+        for (Frame frame : frames) {
+            if (frame.data == data) {
+                return frame;
+            }
+        }
+        throw new IllegalStateException("Unknown preview buffer");
+    }
+
+    private void process(Frame frame) throws InterruptedException {
+        int side = Math.round(Math.min(previewWidth, previewHeight) * roiFraction);
+        int left = (previewWidth - side) / 2;
+        int top = (previewHeight - side) / 2;
+        if (rotation == 0) {
+            workspace.convertLuminanceToBlackAndWhiteCenteredImage(frame.data, previewWidth, left, top, side, side);
+        } else {
+            rotateRegion(frame.data, previewWidth, left, top, side);
+            workspace.convertLuminanceToBlackAndWhiteCenteredImage(rotated, side, 0, 0, side, side);
+        }
+        Classification classification = models.classify(workspace, cache);
+
+        long now = System.nanoTime();
+        if (windowFrames == 0) {
+            windowStart = now;
+        }
+        windowFrames++;
+        if (now - windowStart >= FPS_WINDOW_NANOS) {
+            fps = (windowFrames - 1) * 1e9f / (now - windowStart);
+            Log.d(TAG, "Classified " + fps + " fps, dropped " + dropped.get() + " frames");
+            windowFrames = 0;
+        }
+        deliver(classification, fps, frame.arrived);
+    }
+
+    /**
+     * Copy the square region of interest from the sensor orientation to the display orientation,
+     * so the digit is upright.
+     */
+    private void rotateRegion(byte[] luminance, int rowStride, int left, int top, int side) {
+        if (rotated.length < side * side) {
+            rotated = new byte[side * side];
+        }
+        int last = side - 1;
+        for (int y = 0; y < side; y++) {
+            for (int x = 0; x < side; x++) {
+                int sourceX;
+                int sourceY;
+                switch (rotation) {
+                    case 90:
+                        sourceX = y;
+                        sourceY = last - x;
+                        break;
+                    case 180:
+                        sourceX = last - x;
+                        sourceY = last - y;
+                        break;
+                    default:
+                        sourceX = last - y;
+                        sourceY = x;
+                }
+                rotated[y * side + x] = luminance[(top + sourceY) * rowStride + left + sourceX];
+            }
+        }
+    }
+
+    /**
+     * Give the buffer back to the camera for the next frames.
+     */
+    private void recycle(final byte[] data) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (camera != null) {
+                    camera.addCallbackBuffer(data);
+                }
+            }
+        });
+    }
+
+    private void deliver(final Classification classification, final float fps, final long arrived) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (running) {
+                    long latencyMillis = (System.nanoTime() - arrived) / 1000000;
+                    listener.onFrameClassified(classification, fps, latencyMillis, dropped.get());
+                }
+            }
+        });
+    }
+
+    private void deliverError(final Throwable tr) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (running) {
+                    listener.onError(tr);
+                }
+            }
+        });
+    }
+
+    private static int findBackCamera() {
+        Camera.CameraInfo info = new Camera.CameraInfo();
+        for (int i = 0; i < Camera.getNumberOfCameras(); i++) {
+            Camera.getCameraInfo(i, info);
+            if (info.facing == Camera.CameraInfo.CAMERA_FACING_BACK) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Small previews are enough for a single digit and cheaper to process.
+     *
+     * @return The supported size closest to {@link #PREVIEW_WIDTH}x{@link #PREVIEW_HEIGHT}.
+     */
+    private static Camera.Size findPreviewSize(List<Camera.Size> sizes) {
+        Camera.Size best = sizes.get(0);
+        for (Camera.Size size : sizes) {
+            int difference = Math.abs(size.width - PREVIEW_WIDTH) + Math.abs(size.height - PREVIEW_HEIGHT);
+            if (difference < Math.abs(best.width - PREVIEW_WIDTH) + Math.abs(best.height - PREVIEW_HEIGHT)) {
+                best = size;
+            }
+        }
+        return best;
+    }
+}
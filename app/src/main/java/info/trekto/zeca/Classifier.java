@@ -17,65 +17,627 @@ limitations under the License.
 package info.trekto.zeca;
 
 import android.app.Activity;
+import android.graphics.Bitmap;
 import android.util.Log;
 import android.widget.Toast;
 
 import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.Tensor;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
+import static info.trekto.zeca.Classification.fromModelOutput;
+import static info.trekto.zeca.ImagePreprocessor.convertToBitPackedImage;
 import static info.trekto.zeca.MainActivity.showToast;
+import static info.trekto.zeca.PreprocessingWorkspace.TOTAL_PIXELS;
+import static java.nio.ByteOrder.nativeOrder;
 import static org.tensorflow.lite.support.common.FileUtil.loadMappedFile;
 
 class Classifier {
     private static final String TAG = "Classifier";
 
+    /**
+     * Smaller batches are preprocessed on the calling thread, handing them to other threads costs more.
+     */
+    static final int PARALLEL_BATCH_SIZE = 32;
+    static final String MODEL_FILE = "2020-Mar-31_20-03-28_LATENCY_antialiasing_B-W.tflite";
+
     private Interpreter interpreter;
+    private JavaNetwork network;
+    private ClassifierConfig config;
+    private String modelName = MODEL_FILE;
+
+    // Optional, may be shared between classifiers
+    private ResultCache cache;
+    private HoleClassifier preClassifier;
+    private boolean validatePreClassifier;
+    private final BitPackedImage packed = new BitPackedImage();
+
+    // Format of the model input and output. Float unless the model is quantized.
+    private TensorFormat inputFormat = TensorFormat.FLOAT;
+    private TensorFormat outputFormat = TensorFormat.FLOAT;
+
+    // Reused between the calls. Interpreter is not thread-safe anyway.
+    private final float[][] output = new float[1][1];
+    private ByteBuffer outputBuffer;
+
+    // Used by classify(Bitmap), classifyBatch(List<Bitmap>) and classifyLine(Bitmap)
+    private final PreprocessingWorkspace workspace = new PreprocessingWorkspace();
+    private final LineSegmenter segmenter = new LineSegmenter();
+    private ByteBuffer input;
+    private ByteBuffer batchInput;
+
+    // Current size of the first dimension of the input tensor
+    private int batchSize = 1;
+
+    // Created by the first big batch, stopped by closeInterpreter()
+    private BatchPreprocessor batchPreprocessor;
+    private BitPackedImage[] batchImages = new BitPackedImage[0];
 
     Classifier(Activity activity) {
+        this(activity, ClassifierConfig.DEFAULT);
+    }
+
+    Classifier(Activity activity, ClassifierConfig config) {
         try {
-            MappedByteBuffer model = loadMappedFile(activity, "2020-Mar-31_20-03-28_LATENCY_antialiasing_B-W.tflite");
-            interpreter = new Interpreter(model, new Interpreter.Options());
+            MappedByteBuffer model = loadMappedFile(activity, MODEL_FILE);
+            createInterpreter(model, config);
         } catch (IOException ex) {
             Log.e(TAG, "Cannot load tflite model!", ex);
             showToast(activity, "Cannot load tflite model: " + ex.getLocalizedMessage(), Toast.LENGTH_LONG);
         }
+        allocateBuffers();
+    }
+
+    /**
+     * Create a classifier over an already loaded model.
+     * Many classifiers can share the same model buffer (see {@link InterpreterPool}).
+     *
+     * @param model     Model loaded with loadMappedFile.
+     * @param modelName Identifies the model in the {@link ResultCache}.
+     * @param config    How to run the model.
+     */
+    Classifier(MappedByteBuffer model, String modelName, ClassifierConfig config) {
+        this.modelName = modelName;
+        createInterpreter(model, config);
+        allocateBuffers();
+    }
+
+    /**
+     * Create the interpreter with the given config.
+     * If a delegate cannot be initialized (unsupported device, old Android, missing driver)
+     * the interpreter is created again for plain CPU with the same number of threads.
+     * If the model cannot run in Java (unsupported operators), the default TFLite config is used.
+     */
+    private void createInterpreter(MappedByteBuffer model, ClassifierConfig config) {
+        if (config.useJava) {
+            try {
+                // Float input and output, the default formats
+                network = new JavaNetwork(model);
+                this.config = config;
+                return;
+            } catch (RuntimeException ex) {
+                // Unsupported or corrupted model, or a bug in the parser. TFLite may still run it.
+                Log.w(TAG, "Cannot run " + modelName + " in Java. Falling back to TFLite.", ex);
+                config = ClassifierConfig.DEFAULT;
+            }
+        }
+        try {
+            interpreter = new Interpreter(model, config.toOptions());
+            this.config = config;
+        } catch (RuntimeException ex) {
+            if (!config.usesDelegate()) {
+                throw ex;
+            }
+            Log.w(TAG, "Cannot initialize delegate for " + config + ". Falling back to CPU.", ex);
+            ClassifierConfig fallback = config.withoutDelegates();
+            interpreter = new Interpreter(model, fallback.toOptions());
+            this.config = fallback;
+        }
+        readTensorFormats();
+    }
+
+    /**
+     * Detect whether the model is a float or a quantized (uint8/int8) one.
+     */
+    private void readTensorFormats() {
+        inputFormat = readFormat(interpreter.getInputTensor(0));
+        outputFormat = readFormat(interpreter.getOutputTensor(0));
+    }
+
+    private static TensorFormat readFormat(Tensor tensor) {
+        Tensor.QuantizationParams params = tensor.quantizationParams();
+        return TensorFormat.of(tensor.dataType().name(), params.getScale(), params.getZeroPoint());
+    }
+
+    private void allocateBuffers() {
+        outputBuffer = allocateBuffer(outputFormat.type.byteSize);
+        input = createInputBuffer(1);
+        batchInput = input;
+    }
+
+    /**
+     * Check that the model takes one 32x32 image and gives one probability.
+     * Must be called before the input is resized for a batch.
+     *
+     * @throws IllegalArgumentException If the shapes of the tensors are different.
+     */
+    void validateShapes() {
+        int[] inputShape = network != null ? network.getInputShape() : interpreter.getInputTensor(0).shape();
+        int[] outputShape = network != null ? network.getOutputShape() : interpreter.getOutputTensor(0).shape();
+        if (!Arrays.equals(inputShape, new int[]{1, TOTAL_PIXELS}) || !Arrays.equals(outputShape, new int[]{1, 1})) {
+            throw new IllegalArgumentException("Unsupported model " + modelName + ". Input: " + Arrays.toString(inputShape)
+                    + ", output: " + Arrays.toString(outputShape) + ", expected [1, " + TOTAL_PIXELS + "] and [1, 1]");
+        }
+    }
+
+    /**
+     * Run the model once on a blank image. The first run allocates the tensors and prepares the kernels
+     * (delegates pack the weights), so it is much slower than the next ones.
+     * Does not use the cache and the pre-classifier.
+     */
+    void warmUp() {
+        if (!isLoaded()) {
+            return;
+        }
+        ByteBuffer blank = createInputBuffer(1);
+        classify(blank);
+    }
+
+    /**
+     * @return The config actually used. Without delegates if they failed.
+     */
+    ClassifierConfig getConfig() {
+        return config;
+    }
+
+    boolean isLoaded() {
+        return interpreter != null || network != null;
+    }
+
+    /**
+     * @param cache Cache consulted before running the model or null for no cache.
+     */
+    void setCache(ResultCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * @param preClassifier Decides the obvious images before the model or null to always run the model.
+     * @param validate      If true the model runs for all images and its result is returned,
+     *                      the pre-classifier only collects statistics of the agreement with the model.
+     */
+    void setPreClassifier(HoleClassifier preClassifier, boolean validate) {
+        this.preClassifier = preClassifier;
+        this.validatePreClassifier = validate;
     }
 
+    /**
+     * Works only for float models.
+     *
+     * @param pixels Normalized pixels.
+     * @return The classification or null if the model is not loaded.
+     */
     Classification classify(float[] pixels) {
-        if (interpreter == null) {
+        if (!isLoaded()) {
+            return null;
+        } else {
+            if (network != null) {
+                network.run(pixels, output[0], 1);
+            } else {
+                resizeInput(1);
+                interpreter.run(pixels, output);
+            }
+            return fromModelOutput(output[0][0]);
+        }
+    }
+
+    /**
+     * Preprocess and classify an image using the workspace and the input buffer of this classifier.
+     *
+     * @param bitmap Image containing one digit.
+     * @return The classification or null if the model is not loaded.
+     */
+    Classification classify(Bitmap bitmap) {
+        convertToBitPackedImage(bitmap, workspace, packed);
+        return classify(packed);
+    }
+
+    /**
+     * Classify the last image preprocessed by the workspace.
+     *
+     * @param workspace Workspace which preprocessed the image.
+     * @return The classification or null if the model is not loaded.
+     */
+    Classification classify(PreprocessingWorkspace workspace) {
+        workspace.pack(packed);
+        return classify(packed);
+    }
+
+    /**
+     * The same as {@link #classify(PreprocessingWorkspace)} with another cache than the one of the classifier.
+     *
+     * @param workspace Workspace which preprocessed the image.
+     * @param cache     Cache consulted before running the model or null for no cache.
+     * @return The classification or null if the model is not loaded.
+     */
+    Classification classify(PreprocessingWorkspace workspace, ResultCache cache) {
+        workspace.pack(packed);
+        return classify(packed, cache);
+    }
+
+    /**
+     * Classify a bit-packed image. The model input is unpacked from it.
+     * If there is a cache, it is consulted first and the model runs only on a miss.
+     * Then if there is a pre-classifier and it is confident enough, its result is returned without running the model.
+     *
+     * @param image Black and white centered image. Not kept, the cache gets a copy.
+     * @return The classification or null if the model is not loaded.
+     */
+    Classification classify(BitPackedImage image) {
+        return classify(image, cache);
+    }
+
+    private Classification classify(BitPackedImage image, ResultCache cache) {
+        if (!isLoaded()) {
+            return null;
+        }
+
+        if (cache != null) {
+            Classification cached = cache.get(modelName, image);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        Classification fast = null;
+        if (preClassifier != null) {
+            fast = preClassifier.classify(image);
+            if (fast != null && !validatePreClassifier) {
+                preClassifier.recordSkipped();
+                // Not cached. The cache holds only results of the model.
+                return fast;
+            }
+        }
+
+        writeInput(image, input, 0);
+        Classification classification = classify(input);
+        if (fast != null) {
+            preClassifier.recordAgreement(fast, classification);
+        }
+        if (cache != null) {
+            cache.put(modelName, image.copy(), classification);
+        }
+        return classification;
+    }
+
+    /**
+     * Classify an image already written in a direct buffer (see {@link #writeInput}).
+     * Native memory is passed to the interpreter without copying into Java arrays
+     * and nothing is allocated except the result.
+     *
+     * @param input Buffer created by {@link #createInputBuffer(int)}.
+     * @return The classification or null if the model is not loaded.
+     */
+    Classification classify(ByteBuffer input) {
+        if (!isLoaded()) {
             return null;
         } else {
-            // Our classifier is binary. We have only two classes.
-            // Thus the output is just a single number - the probability the digit to be eight.
-            // If the probability is above 0.5 we assume the digit is eight. Otherwise - zero.
-            float[][] output = new float[1][1];
+            run(input, 1);
+            return fromModelOutput(readOutput(0));
+        }
+    }
+
+    /**
+     * Preprocess and classify many images with a single interpreter run.
+     * Images found in the cache are not passed to the model.
+     * Batches of at least {@link #PARALLEL_BATCH_SIZE} images are preprocessed on all cores
+     * (see {@link BatchPreprocessor}), preprocessing dominates for this small model.
+     *
+     * @param bitmaps Images, each containing one digit.
+     * @return Classifications in the order of the images or null if the model is not loaded.
+     * @throws InterruptedException If interrupted while waiting for the parallel preprocessing.
+     */
+    Classification[] classifyBatch(List<Bitmap> bitmaps) throws InterruptedException {
+        if (!isLoaded()) {
+            return null;
+        }
+
+        int n = bitmaps.size();
+        if (n >= PARALLEL_BATCH_SIZE) {
+            if (batchPreprocessor == null) {
+                batchPreprocessor = new BatchPreprocessor();
+            }
+            if (batchImages.length < n) {
+                BitPackedImage[] grown = Arrays.copyOf(batchImages, n);
+                for (int i = batchImages.length; i < n; i++) {
+                    grown[i] = new BitPackedImage();
+                }
+                batchImages = grown;
+            }
+            batchPreprocessor.preprocess(bitmaps, batchImages);
+            return classifyPackedBatch(Arrays.asList(batchImages).subList(0, n));
+        }
+
+        if (batchInput.capacity() < n * getInputBytesPerImage()) {
+            batchInput = createInputBuffer(n);
+        }
+
+        Classification[] classifications = new Classification[n];
+        int[] missIndexes = new int[n];
+        BitPackedImage[] missImages = new BitPackedImage[n];
+        int misses = 0;
+
+        for (int i = 0; i < n; i++) {
+            convertToBitPackedImage(bitmaps.get(i), workspace, packed);
+            misses = addToBatch(i, classifications, missIndexes, missImages, misses);
+        }
+        classifyMisses(classifications, missIndexes, missImages, misses);
+        return classifications;
+    }
+
+    /**
+     * Find the glyphs in a line (e.g. a strip of a receipt) and classify all of them with a single interpreter run.
+     * The line is binarized and segmented once (see {@link LineSegmenter}), then each glyph is preprocessed
+     * as a single digit directly from the pixels of the line. The binarized line is not reused: each glyph is
+     * thresholded with its own mean after scaling, so the model gets the same input as for a single image.
+     * Glyphs found in the cache are not passed to the model.
+     * Glyphs which cannot be preprocessed (e.g. too long and thin to scale) get a null classification.
+     *
+     * @param line Image of one line of text.
+     * @return Glyphs from left to right with their classifications or null if the model is not loaded.
+     */
+    List<GlyphClassification> classifyLine(Bitmap line) {
+        if (!isLoaded()) {
+            return null;
+        }
+
+        int width = line.getWidth();
+        int height = line.getHeight();
+        int[] argb = workspace.getSourceBuffer(width * height);
+        line.getPixels(argb, 0, width, 0, 0, width, height);
+        List<Glyph> glyphs = segmenter.segment(argb, width, height);
+
+        int n = glyphs.size();
+        if (batchInput.capacity() < n * getInputBytesPerImage()) {
+            batchInput = createInputBuffer(n);
+        }
+
+        Classification[] classifications = new Classification[n];
+        int[] missIndexes = new int[n];
+        BitPackedImage[] missImages = new BitPackedImage[n];
+        int misses = 0;
+
+        for (int i = 0; i < n; i++) {
+            Glyph glyph = glyphs.get(i);
+            try {
+                workspace.convertToBlackAndWhiteCenteredImage(argb, width, glyph.left, glyph.top, glyph.width, glyph.height);
+            } catch (IllegalArgumentException ex) {
+                // E.g. a long dash cannot be scaled to 32x32. Left unclassified, the other glyphs are still classified.
+                Log.w(TAG, "Cannot classify glyph " + glyph, ex);
+                continue;
+            }
+            workspace.pack(packed);
+            misses = addToBatch(i, classifications, missIndexes, missImages, misses);
+        }
+        classifyMisses(classifications, missIndexes, missImages, misses);
+
+        List<GlyphClassification> result = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            result.add(new GlyphClassification(glyphs.get(i), classifications[i]));
+        }
+        return result;
+    }
+
+    /**
+     * Take the classification of the image in {@link #packed} from the cache
+     * or unpack the image in the batch input after the previous misses.
+     *
+     * @return The number of misses including this image.
+     */
+    private int addToBatch(int index, Classification[] classifications, int[] missIndexes,
+                           BitPackedImage[] missImages, int misses) {
+        if (cache != null) {
+            classifications[index] = cache.get(modelName, packed);
+            if (classifications[index] != null) {
+                return misses;
+            }
+            missImages[misses] = packed.copy();
+        }
+        missIndexes[misses] = index;
+        writeInput(packed, batchInput, misses);
+        return misses + 1;
+    }
+
+    /**
+     * Classify the images written by {@link #addToBatch} with a single interpreter run and cache the results.
+     */
+    private void classifyMisses(Classification[] classifications, int[] missIndexes,
+                                BitPackedImage[] missImages, int misses) {
+        if (misses > 0) {
+            Classification[] results = classifyBatch(batchInput, misses);
+            for (int i = 0; i < misses; i++) {
+                classifications[missIndexes[i]] = results[i];
+                if (cache != null) {
+                    cache.put(modelName, missImages[i], results[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Classify many bit-packed images with a single interpreter run.
+     * 1024 images take only 128 KB before they are unpacked into the input buffer.
+     * Images found in the cache are not passed to the model.
+     *
+     * @param images Black and white centered images, e.g. from {@link PreprocessingWorkspace#convertToBitPackedImage}.
+     * @return Classifications in the order of the images or null if the model is not loaded.
+     */
+    Classification[] classifyPackedBatch(List<BitPackedImage> images) {
+        if (!isLoaded()) {
+            return null;
+        }
+
+        int n = images.size();
+        if (batchInput.capacity() < n * getInputBytesPerImage()) {
+            batchInput = createInputBuffer(n);
+        }
+
+        Classification[] classifications = new Classification[n];
+        int[] missIndexes = new int[n];
+        int misses = 0;
 
-            interpreter.run(pixels, output);
+        for (int i = 0; i < n; i++) {
+            BitPackedImage image = images.get(i);
+            if (cache != null) {
+                classifications[i] = cache.get(modelName, image);
+                if (classifications[i] != null) {
+                    continue;
+                }
+            }
+            missIndexes[misses] = i;
+            writeInput(image, batchInput, misses++);
+        }
 
-            float result = output[0][0];
-            char digit = result > 0.5f ? '8' : '0';
-            return new Classification(digit, calculateConfidence(result));
+        if (misses > 0) {
+            Classification[] results = classifyBatch(batchInput, misses);
+            for (int i = 0; i < misses; i++) {
+                classifications[missIndexes[i]] = results[i];
+                if (cache != null) {
+                    cache.put(modelName, images.get(missIndexes[i]).copy(), results[i]);
+                }
+            }
         }
+        return classifications;
     }
 
     /**
-     * Calculates how confident we are that the classified digit is correct.
-     * @param result The result of the binary classification.
-     * @return Confidence between 0 and 1 inclusive.
+     * Classify n images with a single interpreter run.
+     * The input tensor is resized to [n, 1024] only when n differs from the previous call,
+     * so repeating batch sizes reuse the allocated tensors.
+     *
+     * @param input Buffer created by {@link #createInputBuffer(int)} with n images one after another.
+     * @param n     Number of images in the buffer.
+     * @return Classifications in the order of the images or null if the model is not loaded.
      */
-    private float calculateConfidence(float result) {
-        if (result > 0.5f) {
-            return 1-2*(1-result);
+    Classification[] classifyBatch(ByteBuffer input, int n) {
+        if (!isLoaded()) {
+            return null;
+        }
+
+        int outputBytes = n * outputFormat.type.byteSize;
+        if (outputBuffer.capacity() < outputBytes) {
+            outputBuffer = allocateBuffer(outputBytes);
+        }
+
+        run(input, n);
+
+        Classification[] classifications = new Classification[n];
+        for (int i = 0; i < n; i++) {
+            classifications[i] = fromModelOutput(readOutput(i));
+        }
+        return classifications;
+    }
+
+    /**
+     * Write the last image preprocessed by the workspace in the format of the model input:
+     * normalized floats for float models, raw bytes for quantized ones.
+     * Thread-safe: different threads can write different images of the same buffer.
+     *
+     * @param workspace Workspace which preprocessed the image.
+     * @param input     Buffer created by {@link #createInputBuffer(int)}.
+     * @param image     Position of the image in the buffer (0 for single image buffers).
+     */
+    void writeInput(PreprocessingWorkspace workspace, ByteBuffer input, int image) {
+        inputFormat.writeImage(workspace, input, image);
+    }
+
+    /**
+     * Unpack a bit-packed image directly in the format of the model input.
+     *
+     * @param image Black and white centered image.
+     * @param input Buffer created by {@link #createInputBuffer(int)}.
+     * @param index Position of the image in the buffer (0 for single image buffers).
+     */
+    void writeInput(BitPackedImage image, ByteBuffer input, int index) {
+        inputFormat.writeImage(image, workspace.getLayout(), input, index);
+    }
+
+    /**
+     * @return The output of the model for the given image, dequantized if the model is quantized.
+     */
+    private float readOutput(int image) {
+        return outputFormat.readValue(outputBuffer, image);
+    }
+
+    /**
+     * Run the model on n images into the output buffer, which must be big enough.
+     */
+    private void run(ByteBuffer input, int n) {
+        if (network != null) {
+            network.run(input, outputBuffer, n);
         } else {
-            return 1-2*(result);
+            resizeInput(n);
+            interpreter.run(view(input, n * getInputBytesPerImage()), view(outputBuffer, n * outputFormat.type.byteSize));
+        }
+    }
+
+    /**
+     * The interpreter accepts only buffers with exactly the size of the tensor.
+     * Buffers grown for bigger batches are passed as a view over their beginning.
+     *
+     * @param buffer Direct buffer in native order.
+     * @param bytes  Size of the tensor.
+     * @return The buffer itself or a view sharing its memory.
+     */
+    private static ByteBuffer view(ByteBuffer buffer, int bytes) {
+        buffer.rewind();
+        if (buffer.capacity() == bytes) {
+            return buffer;
+        }
+        buffer.limit(bytes);
+        ByteBuffer view = buffer.slice().order(nativeOrder());
+        buffer.clear();
+        return view;
+    }
+
+    private void resizeInput(int n) {
+        if (batchSize != n) {
+            interpreter.resizeInput(0, new int[]{n, TOTAL_PIXELS});
+            batchSize = n;
         }
     }
 
+    /**
+     * @return 4 bytes per pixel for float models, 1 for quantized ones.
+     */
+    int getInputBytesPerImage() {
+        return inputFormat.getBytesPerImage();
+    }
+
+    /**
+     * @param images Number of images.
+     * @return Direct buffer in native byte order for the given number of images in the format of the model.
+     */
+    ByteBuffer createInputBuffer(int images) {
+        return allocateBuffer(images * getInputBytesPerImage());
+    }
+
+    private static ByteBuffer allocateBuffer(int bytes) {
+        return ByteBuffer.allocateDirect(bytes).order(nativeOrder());
+    }
+
     void closeInterpreter() {
         if (interpreter != null) {
             interpreter.close();
         }
+        if (batchPreprocessor != null) {
+            batchPreprocessor.shutdown();
+        }
     }
 }
@@ -0,0 +1,116 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+import org.tensorflow.lite.Interpreter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * How the TFLite interpreter runs the model: number of CPU threads and which delegates to use.
+ * Alternatively the model can run without TFLite, in {@link JavaNetwork}.
+ */
+class ClassifierConfig {
+    /**
+     * Single thread, no delegates. The way the classifier worked before the config existed.
+     */
+    static final ClassifierConfig DEFAULT = new ClassifierConfig(1, false, false, false);
+
+    /**
+     * Plain Java instead of TFLite, single thread.
+     */
+    static final ClassifierConfig JAVA = new ClassifierConfig(1, false, false, false, true);
+
+    final int numThreads;
+    final boolean useXnnpack;
+    final boolean useNnapi;
+    final boolean allowFp16;
+    final boolean useJava;
+
+    /**
+     * @param numThreads Number of CPU threads used by the interpreter.
+     * @param useXnnpack Use the XNNPACK delegate for the CPU.
+     * @param useNnapi   Use the Android Neural Networks API delegate.
+     * @param allowFp16  Allow float16 precision for float32 computations.
+     */
+    ClassifierConfig(int numThreads, boolean useXnnpack, boolean useNnapi, boolean allowFp16) {
+        this(numThreads, useXnnpack, useNnapi, allowFp16, false);
+    }
+
+    /**
+     * @param useJava Run the model with {@link JavaNetwork} instead of TFLite. The other options are ignored.
+     */
+    ClassifierConfig(int numThreads, boolean useXnnpack, boolean useNnapi, boolean allowFp16, boolean useJava) {
+        this.numThreads = numThreads;
+        this.useXnnpack = useXnnpack;
+        this.useNnapi = useNnapi;
+        this.allowFp16 = allowFp16;
+        this.useJava = useJava;
+    }
+
+    boolean usesDelegate() {
+        return useXnnpack || useNnapi;
+    }
+
+    /**
+     * @return The same config with plain CPU execution. Used when a delegate cannot be initialized.
+     */
+    ClassifierConfig withoutDelegates() {
+        return new ClassifierConfig(numThreads, false, false, allowFp16, useJava);
+    }
+
+    Interpreter.Options toOptions() {
+        Interpreter.Options options = new Interpreter.Options();
+        options.setNumThreads(numThreads);
+        options.setUseXNNPACK(useXnnpack);
+        options.setUseNNAPI(useNnapi);
+        options.setAllowFp16PrecisionForFp32(allowFp16);
+        return options;
+    }
+
+    /**
+     * @return Configurations worth trying on this device, starting with {@link #DEFAULT}.
+     */
+    static List<ClassifierConfig> candidates() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<ClassifierConfig> candidates = new ArrayList<>();
+        candidates.add(DEFAULT);
+        if (cores > 1) {
+            candidates.add(new ClassifierConfig(cores, false, false, false));
+        }
+        candidates.add(new ClassifierConfig(1, true, false, false));
+        if (cores > 1) {
+            candidates.add(new ClassifierConfig(cores, true, false, false));
+        }
+        candidates.add(new ClassifierConfig(1, false, true, false));
+        candidates.add(new ClassifierConfig(1, false, true, true));
+        candidates.add(JAVA);
+        return candidates;
+    }
+
+    @Override
+    public String toString() {
+        if (useJava) {
+            return "Java";
+        }
+        return "threads: " + numThreads
+                + (useXnnpack ? ", XNNPACK" : "")
+                + (useNnapi ? ", NNAPI" : "")
+                + (allowFp16 ? ", FP16" : "");
+    }
+}
@@ -0,0 +1,206 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static info.trekto.zeca.ImagePreprocessor.convertToBlackAndWhiteCenteredPixels;
+
+/**
+ * Picks the fastest {@link ClassifierConfig} on the current device
+ * by timing inferences on the sample images from the assets.
+ * The choice is remembered, so the timing is done once per device and app version.
+ */
+class ClassifierConfigSelector {
+    private static final String TAG = "ClassifierConfigSelector";
+    private static final int WARM_UP_ROUNDS = 3;
+    private static final int TIMED_ROUNDS = 10;
+
+    private static final String PREFERENCES = "classifier_config";
+    private static final String KEY_DEVICE = "device";
+    private static final String KEY_VERSION = "version";
+    private static final String KEY_THREADS = "threads";
+    private static final String KEY_XNNPACK = "xnnpack";
+    private static final String KEY_NNAPI = "nnapi";
+    private static final String KEY_FP16 = "fp16";
+    private static final String KEY_JAVA = "java";
+
+    /**
+     * The config selected by {@link #selectFastest(Activity)} on a previous start of the same app version
+     * on the same device (OS updates change the drivers). If there is no such config, it is selected and saved.
+     *
+     * @param activity Used to load the model, the sample images and the preferences.
+     * @return The fastest config.
+     */
+    static ClassifierConfig selectRemembered(Activity activity) {
+        SharedPreferences preferences = activity.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        if (Build.FINGERPRINT.equals(preferences.getString(KEY_DEVICE, null))
+                && preferences.getInt(KEY_VERSION, -1) == BuildConfig.VERSION_CODE) {
+            ClassifierConfig remembered = new ClassifierConfig(preferences.getInt(KEY_THREADS, 1),
+                    preferences.getBoolean(KEY_XNNPACK, false),
+                    preferences.getBoolean(KEY_NNAPI, false),
+                    preferences.getBoolean(KEY_FP16, false),
+                    preferences.getBoolean(KEY_JAVA, false));
+            Log.i(TAG, "Remembered " + remembered);
+            return remembered;
+        }
+
+        ClassifierConfig fastest = selectFastest(activity);
+        preferences.edit()
+                .putString(KEY_DEVICE, Build.FINGERPRINT)
+                .putInt(KEY_VERSION, BuildConfig.VERSION_CODE)
+                .putInt(KEY_THREADS, fastest.numThreads)
+                .putBoolean(KEY_XNNPACK, fastest.useXnnpack)
+                .putBoolean(KEY_NNAPI, fastest.useNnapi)
+                .putBoolean(KEY_FP16, fastest.allowFp16)
+                .putBoolean(KEY_JAVA, fastest.useJava)
+                .apply();
+        return fastest;
+    }
+
+    /**
+     * Each candidate from {@link ClassifierConfig#candidates()} is warmed up and then timed.
+     * Candidates whose delegates cannot be initialized are skipped.
+     *
+     * @param activity Used to load the model and the sample images.
+     * @return The fastest config or {@link ClassifierConfig#DEFAULT} if nothing can be measured.
+     */
+    static ClassifierConfig selectFastest(Activity activity) {
+        List<Bitmap> samples = loadSamples(activity.getAssets());
+        if (samples.isEmpty()) {
+            return ClassifierConfig.DEFAULT;
+        }
+
+        ClassifierConfig fastest = ClassifierConfig.DEFAULT;
+        long fastestTime = Long.MAX_VALUE;
+
+        for (ClassifierConfig candidate : ClassifierConfig.candidates()) {
+            Classifier classifier = new Classifier(activity, candidate);
+            try {
+                // If a delegate failed, the classifier falls back to CPU which is measured as a separate candidate.
+                if (!classifier.isLoaded() || classifier.getConfig() != candidate) {
+                    continue;
+                }
+
+                List<ByteBuffer> inputs = prepareInputs(classifier, samples);
+                run(classifier, inputs, WARM_UP_ROUNDS, null);
+                long[] latencies = new long[TIMED_ROUNDS * inputs.size()];
+                long time = run(classifier, inputs, TIMED_ROUNDS, latencies);
+
+                log(candidate, time, latencies);
+                if (time < fastestTime) {
+                    fastestTime = time;
+                    fastest = candidate;
+                }
+            } catch (RuntimeException ex) {
+                Log.w(TAG, "Cannot measure " + candidate, ex);
+            } finally {
+                classifier.closeInterpreter();
+            }
+        }
+
+        Log.i(TAG, "Selected " + fastest);
+        return fastest;
+    }
+
+    /**
+     * @param latencies If not null, receives the duration of each inference in nanoseconds.
+     * @return Total time in nanoseconds.
+     */
+    private static long run(Classifier classifier, List<ByteBuffer> samples, int rounds, long[] latencies) {
+        long total = 0;
+        int i = 0;
+        for (int round = 0; round < rounds; round++) {
+            for (ByteBuffer sample : samples) {
+                long start = System.nanoTime();
+                classifier.classify(sample);
+                long latency = System.nanoTime() - start;
+                total += latency;
+                if (latencies != null) {
+                    latencies[i++] = latency;
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Log inferences per second, median and 99th percentile latency of a candidate.
+     */
+    private static void log(ClassifierConfig candidate, long time, long[] latencies) {
+        Arrays.sort(latencies);
+        long p50 = latencies[latencies.length / 2];
+        long p99 = latencies[Math.min(latencies.length - 1, latencies.length * 99 / 100)];
+        Log.i(TAG, candidate + ": " + latencies.length * 1000000000L / Math.max(1, time) + " inferences/s"
+                + ", p50: " + p50 / 1000 + " us, p99: " + p99 / 1000 + " us");
+    }
+
+    /**
+     * @return The sample images preprocessed in the input format of the classifier, each in its own buffer.
+     */
+    private static List<ByteBuffer> prepareInputs(Classifier classifier, List<Bitmap> samples) {
+        List<ByteBuffer> inputs = new ArrayList<>();
+        PreprocessingWorkspace workspace = new PreprocessingWorkspace();
+        for (Bitmap sample : samples) {
+            ByteBuffer input = classifier.createInputBuffer(1);
+            convertToBlackAndWhiteCenteredPixels(sample, workspace);
+            classifier.writeInput(workspace, input, 0);
+            inputs.add(input);
+        }
+        return inputs;
+    }
+
+    /**
+     * @return The sample images from the assets.
+     */
+    private static List<Bitmap> loadSamples(AssetManager assetManager) {
+        List<Bitmap> samples = new ArrayList<>();
+        try {
+            for (String filename : assetManager.list("")) {
+                if (!filename.endsWith(".png")) {
+                    continue;
+                }
+                InputStream inputStream = assetManager.open(filename);
+                try {
+                    Bitmap bitmap = BitmapFactory.decodeStream(inputStream);
+                    if (bitmap != null) {
+                        samples.add(bitmap);
+                    }
+                } finally {
+                    inputStream.close();
+                }
+            }
+        } catch (IOException ex) {
+            Log.e(TAG, "Cannot load sample images", ex);
+        }
+        return samples;
+    }
+}
@@ -19,19 +19,24 @@ package info.trekto.zeca;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.ColorMatrix;
 import android.graphics.ColorMatrixColorFilter;
 import android.graphics.Matrix;
 import android.graphics.Paint;
+import android.graphics.Rect;
 import android.net.Uri;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
 import androidx.exifinterface.media.ExifInterface;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -47,6 +52,7 @@ class ImagePreprocessor {
     private static final int IMAGE_W = 32;
     private static final int IMAGE_H = 32;
     private static final int TOTAL_PIXELS = IMAGE_W * IMAGE_H;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
 
     /**
      * 1. Convert to monochrome
@@ -67,6 +73,39 @@ class ImagePreprocessor {
         return tempBitmap;
     }
 
+    /**
+     * Same as {@link #convertToBlackAndWhiteCenteredImage(Bitmap)} but without creating intermediate bitmaps.
+     * All the work is done in the arrays of the workspace.
+     *
+     * @param original  Original image.
+     * @param workspace Reusable buffers. Must not be shared between threads.
+     * @return Black and white pixels (values 0 or 255) centered within a fixed frame in row-major order.
+     * The array is owned by the workspace.
+     */
+    static int[] convertToBlackAndWhiteCenteredPixels(Bitmap original, PreprocessingWorkspace workspace) {
+        int width = original.getWidth();
+        int height = original.getHeight();
+        int[] argb = workspace.getSourceBuffer(width * height);
+        original.getPixels(argb, 0, width, 0, 0, width, height);
+        return workspace.convertToBlackAndWhiteCenteredImage(argb, width, height);
+    }
+
+    /**
+     * Same as {@link #convertToBlackAndWhiteCenteredPixels} but the result is bit-packed.
+     * Thresholding writes the bits directly, the 32x32 pixels are never stored as ints.
+     *
+     * @param original  Original image.
+     * @param workspace Reusable buffers. Must not be shared between threads.
+     * @param image     Receives the black and white image centered within a fixed frame.
+     */
+    static void convertToBitPackedImage(Bitmap original, PreprocessingWorkspace workspace, BitPackedImage image) {
+        int width = original.getWidth();
+        int height = original.getHeight();
+        int[] argb = workspace.getSourceBuffer(width * height);
+        original.getPixels(argb, 0, width, 0, 0, width, height);
+        workspace.convertToBitPackedImage(argb, width, height, image);
+    }
+
     /**
      * Center image based on:
      * - its center of mass for x coordinate;
@@ -261,59 +300,233 @@ class ImagePreprocessor {
         return resizedBitmap;
     }
 
-    static Bitmap getBitmapFromUri(Uri uri, Context context) {
+    /**
+     * An encoded image which can be read more than once. Every method reads it from the beginning.
+     */
+    private interface EncodedImage {
+        Bitmap decode(BitmapFactory.Options options);
+
+        BitmapRegionDecoder newRegionDecoder() throws IOException;
+
+        /**
+         * Must be called last, it may move the offset of the file.
+         */
+        int getExifOrientation();
+    }
+
+    /**
+     * Decode image from uri without loading it in full resolution.<p>
+     * The URI is opened only once. EXIF orientation and pixels are decoded from the same file descriptor,
+     * which is not copied in memory. This matters for slow (e.g. cloud) document providers.
+     * Only if the descriptor is a pipe, which cannot be read twice, its content is read in memory.<p>
+     * 1. Read only the size of the image.<p>
+     * 2. Decode it with the biggest power of two inSampleSize which keeps
+     * the longer side of the image (or of the crop) at least targetSize pixels.<p>
+     * 3. If crop is given, decode only this region with BitmapRegionDecoder.<p>
+     * 4. Rotate the already reduced image according to its EXIF orientation.
+     *
+     * @param uri             Image URI
+     * @param context         Used to open the URI.
+     * @param targetSize      Min length of the longer side after decoding.
+     * @param crop            Region in the coordinates of the stored (not rotated) image or null for the whole image.
+     * @param instrumentation Receives the time of decoding and rotation.
+     * @return Reduced and rotated image.
+     */
+    static Bitmap decodeSampledBitmap(Uri uri, Context context, int targetSize, Rect crop,
+                                      Instrumentation instrumentation) {
+        long start = instrumentation.begin(PipelineStage.DECODE);
+        Bitmap image = null;
+        int degrees;
         try {
-            ParcelFileDescriptor parcelFileDescriptor =
-                    context.getContentResolver().openFileDescriptor(uri, "r");
-            if (parcelFileDescriptor == null) {
+            ParcelFileDescriptor descriptor;
+            try {
+                descriptor = context.getContentResolver().openFileDescriptor(uri, "r");
+            } catch (FileNotFoundException ex) {
+                throw new RuntimeException("Cannot open file", ex);
+            }
+            if (descriptor == null) {
                 throw new RuntimeException("Cannot open file");
             }
-            FileDescriptor fileDescriptor = parcelFileDescriptor.getFileDescriptor();
-            Bitmap image = BitmapFactory.decodeFileDescriptor(fileDescriptor);
-            if (image == null) {
-                throw new RuntimeException("Cannot decode bitmap");
+            try {
+                EncodedImage encoded;
+                if (descriptor.getStatSize() >= 0) {
+                    encoded = fromFileDescriptor(descriptor.getFileDescriptor());
+                } else {
+                    encoded = fromByteArray(readFully(descriptor));
+                }
+                image = decodeSampledBitmap(encoded, targetSize, crop);
+                degrees = toDegrees(encoded.getExifOrientation());
+            } catch (IOException ex) {
+                throw new RuntimeException("Cannot open file", ex);
+            } finally {
+                try {
+                    descriptor.close();
+                } catch (IOException ex) {
+                    Log.e(TAG, "Cannot close file", ex);
+                }
             }
-            parcelFileDescriptor.close();
+        } finally {
+            instrumentation.end(PipelineStage.DECODE, start, image == null ? 0 : image.getByteCount());
+        }
+        if (degrees == 0) {
             return image;
-        } catch (Throwable tr) {
-            throw new RuntimeException("Cannot open file");
         }
+
+        start = instrumentation.begin(PipelineStage.ROTATE);
+        Bitmap rotated = null;
+        try {
+            rotated = rotateBitmap(image, degrees);
+        } finally {
+            instrumentation.end(PipelineStage.ROTATE, start, rotated == null ? 0 : rotated.getByteCount());
+        }
+        return rotated;
     }
 
-    static int getCameraPhotoOrientation(Uri imageUri, Context context) {
-        switch (getExifOrientation(imageUri, context)) {
-            case ExifInterface.ORIENTATION_ROTATE_270:
-                return 270;
-            case ExifInterface.ORIENTATION_ROTATE_180:
-                return 180;
-            case ExifInterface.ORIENTATION_ROTATE_90:
-                return 90;
-            default:
-                return 0;
+    /**
+     * Steps 1-3 of {@link #decodeSampledBitmap(Uri, Context, int, Rect, Instrumentation)}.
+     */
+    private static Bitmap decodeSampledBitmap(EncodedImage encoded, int targetSize, Rect crop) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        encoded.decode(options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new RuntimeException("Cannot decode bitmap");
         }
+
+        int width = crop == null ? options.outWidth : crop.width();
+        int height = crop == null ? options.outHeight : crop.height();
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = calculateInSampleSize(width, height, targetSize);
+
+        Bitmap image = crop == null ? encoded.decode(options) : decodeRegion(encoded, crop, options);
+        if (image == null) {
+            throw new RuntimeException("Cannot decode bitmap");
+        }
+        return image;
     }
 
-    private static int getExifOrientation(Uri uri, Context context) {
-        InputStream inputStream = null;
-        try {
-            inputStream = context.getContentResolver().openInputStream(uri);
-            if (inputStream == null) {
-                Log.e(TAG, "Cannot get EXIF orientation of null inputStream");
-                return ORIENTATION_NORMAL;
+    /**
+     * BitmapFactory.decodeFileDescriptor does not change the offset of the file
+     * and BitmapRegionDecoder maps the whole file, so only EXIF parsing moves it.
+     */
+    private static EncodedImage fromFileDescriptor(final FileDescriptor fileDescriptor) {
+        return new EncodedImage() {
+            @Override
+            public Bitmap decode(BitmapFactory.Options options) {
+                return BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
             }
-            ExifInterface exif = new ExifInterface(inputStream);
-            return exif.getAttributeInt(TAG_ORIENTATION, ORIENTATION_NORMAL);
-        } catch (IOException ex) {
-            Log.e(TAG, "Cannot get exif data", ex);
-            return 0;
-        } finally {
-            if (inputStream != null) {
+
+            @Override
+            public BitmapRegionDecoder newRegionDecoder() throws IOException {
+                return BitmapRegionDecoder.newInstance(fileDescriptor, false);
+            }
+
+            @Override
+            public int getExifOrientation() {
                 try {
-                    inputStream.close();
+                    ExifInterface exif = new ExifInterface(fileDescriptor);
+                    return exif.getAttributeInt(TAG_ORIENTATION, ORIENTATION_NORMAL);
                 } catch (IOException ex) {
-                    Log.e(TAG, "Cannot close inputStream", ex);
+                    Log.e(TAG, "Cannot get exif data", ex);
+                    return 0;
                 }
             }
+        };
+    }
+
+    private static EncodedImage fromByteArray(final byte[] data) {
+        return new EncodedImage() {
+            @Override
+            public Bitmap decode(BitmapFactory.Options options) {
+                return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            }
+
+            @Override
+            public BitmapRegionDecoder newRegionDecoder() throws IOException {
+                return BitmapRegionDecoder.newInstance(data, 0, data.length, false);
+            }
+
+            @Override
+            public int getExifOrientation() {
+                try {
+                    ExifInterface exif = new ExifInterface(new ByteArrayInputStream(data));
+                    return exif.getAttributeInt(TAG_ORIENTATION, ORIENTATION_NORMAL);
+                } catch (IOException ex) {
+                    Log.e(TAG, "Cannot get exif data", ex);
+                    return 0;
+                }
+            }
+        };
+    }
+
+    /**
+     * @return The whole content of the descriptor, which is closed.
+     */
+    private static byte[] readFully(ParcelFileDescriptor descriptor) throws IOException {
+        InputStream inputStream = new ParcelFileDescriptor.AutoCloseInputStream(descriptor);
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream(READ_BUFFER_SIZE);
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, read);
+            }
+            return outputStream.toByteArray();
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Decode only the crop region. If the format is not supported by BitmapRegionDecoder
+     * decode the whole (subsampled) image and cut the region from it.
+     */
+    private static Bitmap decodeRegion(EncodedImage encoded, Rect crop, BitmapFactory.Options options) {
+        try {
+            BitmapRegionDecoder decoder = encoded.newRegionDecoder();
+            try {
+                return decoder.decodeRegion(crop, options);
+            } finally {
+                decoder.recycle();
+            }
+        } catch (IOException ex) {
+            Log.w(TAG, "Cannot decode region. Decoding the whole image.", ex);
+            Bitmap image = encoded.decode(options);
+            if (image == null) {
+                return null;
+            }
+            int sample = options.inSampleSize;
+            return createBitmap(image, crop.left / sample, crop.top / sample,
+                    Math.min(crop.width() / sample, image.getWidth() - crop.left / sample),
+                    Math.min(crop.height() / sample, image.getHeight() - crop.top / sample));
+        }
+    }
+
+    /**
+     * @param width      Width of the image.
+     * @param height     Height of the image.
+     * @param targetSize Min length of the longer side after decoding.
+     * @return The biggest power of two which keeps the longer side at least targetSize.
+     */
+    static int calculateInSampleSize(int width, int height, int targetSize) {
+        int longerSide = Math.max(width, height);
+        int inSampleSize = 1;
+        while (longerSide / (inSampleSize * 2) >= targetSize) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    private static int toDegrees(int exifOrientation) {
+        switch (exifOrientation) {
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                return 270;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                return 180;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                return 90;
+            default:
+                return 0;
         }
     }
 
@@ -324,18 +537,33 @@ class ImagePreprocessor {
     }
 
     /**
-     * Get the values from the bitmap pixels.
+     * Get the values from the bitmap pixels in the layout of the bundled model - {@link TensorLayout#COLUMN_MAJOR}.
      *
      * @param bitmap A monochrome image.
      * @return Array with integers between [0, 255]
      */
     static int[] getPixelsValues(Bitmap bitmap) {
+        return getPixelsValues(bitmap, TensorLayout.COLUMN_MAJOR);
+    }
+
+    /**
+     * Get the values from the bitmap pixels. All pixels are read with one getPixels() call
+     * and then reordered according to the layout. Works for any width and height.
+     *
+     * @param bitmap A monochrome image.
+     * @param layout Order of the pixels in the result.
+     * @return Array with integers between [0, 255]
+     */
+    static int[] getPixelsValues(Bitmap bitmap, TensorLayout layout) {
         int width = bitmap.getWidth();
         int height = bitmap.getHeight();
+        int[] argb = new int[width * height];
+        bitmap.getPixels(argb, 0, width, 0, 0, width, height);
+
         int[] pixels = new int[width * height];
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-                pixels[x * width + y] = bitmap.getPixel(x, y) & 0xff;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                pixels[layout.index(x, y, width, height)] = argb[y * width + x] & 0xff;
             }
         }
 
@@ -0,0 +1,287 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+import android.app.Activity;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static info.trekto.zeca.ImagePreprocessor.convertToBitPackedImage;
+import static info.trekto.zeca.ImagePreprocessor.decodeSampledBitmap;
+
+/**
+ * Loads, preprocesses and classifies images on a single background thread.<p>
+ * The model is in a {@link ModelRegistry}, which has an interpreter for this thread and one for the camera stream.
+ * Results are delivered on the UI thread. When a new image is submitted
+ * the previous request is cancelled and its result is never delivered.<p>
+ * The model is loaded and warmed up on the same thread, so the UI thread never waits for it
+ * and requests submitted before it is ready are classified when it is. The newest model in the app storage
+ * is preferred over the one in the assets. It can be replaced later through {@link #getModels()},
+ * while the current one keeps classifying.<p>
+ * Methods must be called from the UI thread.
+ */
+class InferencePipeline {
+    private static final String TAG = "InferencePipeline";
+    private static final int CACHE_CAPACITY = 256;
+
+    interface Listener {
+        /**
+         * Called on the UI thread.
+         *
+         * @param image          The loaded (and rotated) image.
+         * @param classification The classification or null if the model is not loaded.
+         */
+        void onClassified(Bitmap image, Classification classification);
+
+        /**
+         * Called on the UI thread.
+         *
+         * @param tr What went wrong.
+         */
+        void onError(Throwable tr);
+    }
+
+    private interface ImageLoader {
+        Bitmap load() throws IOException;
+    }
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicInteger generation = new AtomicInteger();
+    private final Activity activity;
+    private final Listener listener;
+    private final long created = System.nanoTime();
+    private final Future<StartupTimings> ready;
+    private final Instrumentation instrumentation = new Instrumentation();
+    private final HoleClassifier preClassifier = new HoleClassifier();
+    private final ModelRegistry models;
+    private Future<?> current;
+
+    // Used only on the executor thread
+    private final PreprocessingWorkspace workspace = new PreprocessingWorkspace();
+    private final BitPackedImage packed = new BitPackedImage();
+    private boolean firstResultDelivered;
+
+    /**
+     * The model is loaded and warmed up on the background thread.
+     *
+     * @param activity Used to load the model, the images and show errors.
+     * @param listener Receives the results.
+     */
+    InferencePipeline(final Activity activity, Listener listener) {
+        this.activity = activity;
+        this.listener = listener;
+        // One interpreter for the executor thread and one for the camera stream
+        models = new ModelRegistry(activity, 2);
+        models.setCache(new ResultCache(CACHE_CAPACITY));
+        // Release builds skip the model for the images the pre-classifier is confident about.
+        // Debug builds always run the model and return its result, collecting the agreement of the two.
+        models.setPreClassifier(preClassifier, BuildConfig.DEBUG);
+        ready = executor.submit(new Callable<StartupTimings>() {
+            @Override
+            public StartupTimings call() throws Exception {
+                long start = System.nanoTime();
+                models.setConfig(ClassifierConfigSelector.selectRemembered(activity));
+                long selected = System.nanoTime();
+                try {
+                    // Waits on this thread, so the requests submitted meanwhile are classified with the model
+                    models.loadLatestInBackground().get();
+                } catch (ExecutionException ex) {
+                    throw new IOException("Cannot load the model", ex.getCause());
+                }
+                long warmedUp = System.nanoTime();
+
+                StartupTimings timings = new StartupTimings(selected - start, models.getLoadNanos(),
+                        models.getWarmUpNanos(), warmedUp - created);
+                Log.i(TAG, "Ready. " + timings);
+                return timings;
+            }
+        });
+    }
+
+    /**
+     * @return Completes when the classifier is loaded and warmed up, with the time each step took.
+     */
+    Future<StartupTimings> getReady() {
+        return ready;
+    }
+
+    /**
+     * @return The models used by this pipeline. A model loaded through it is used by the next classification.
+     */
+    ModelRegistry getModels() {
+        return models;
+    }
+
+    /**
+     * @return Per-stage timings of this pipeline. Disabled by default.
+     */
+    Instrumentation getInstrumentation() {
+        return instrumentation;
+    }
+
+    /**
+     * @return The pre-classifier with its statistics.
+     */
+    HoleClassifier getPreClassifier() {
+        return preClassifier;
+    }
+
+    /**
+     * Load reduced image from uri, rotate it according to its EXIF orientation and classify it.
+     *
+     * @param uri Image URI
+     */
+    void classify(final Uri uri) {
+        submit(new ImageLoader() {
+            @Override
+            public Bitmap load() {
+                // Big enough to be shown on the screen, much smaller than a camera photo
+                int targetSize = activity.getResources().getDisplayMetrics().widthPixels;
+                return decodeSampledBitmap(uri, activity, targetSize, null, instrumentation);
+            }
+        });
+    }
+
+    /**
+     * @param filename Image from the assets.
+     */
+    void classifyAsset(final String filename) {
+        submit(new ImageLoader() {
+            @Override
+            public Bitmap load() throws IOException {
+                InputStream inputStream = activity.getAssets().open(filename);
+                try {
+                    return BitmapFactory.decodeStream(inputStream);
+                } finally {
+                    inputStream.close();
+                }
+            }
+        });
+    }
+
+    void classify(final Bitmap bitmap) {
+        submit(new ImageLoader() {
+            @Override
+            public Bitmap load() {
+                return bitmap;
+            }
+        });
+    }
+
+    /**
+     * Cancel everything and close the interpreter once it is not used any more.
+     */
+    void shutdown() {
+        generation.incrementAndGet();
+        if (current != null) {
+            current.cancel(true);
+        }
+        mainHandler.removeCallbacksAndMessages(null);
+        executor.shutdown();
+        models.close();
+    }
+
+    private void submit(final ImageLoader loader) {
+        final int request = generation.incrementAndGet();
+        final long submitted = System.nanoTime();
+        if (current != null) {
+            // Removes it from the queue or interrupts it if already running
+            current.cancel(true);
+        }
+
+        current = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Bitmap bitmap = loader.load();
+                    if (bitmap == null) {
+                        throw new IOException("Cannot decode bitmap");
+                    }
+                    if (isStale(request)) {
+                        return;
+                    }
+
+                    long start = instrumentation.begin(PipelineStage.PREPROCESS);
+                    try {
+                        convertToBitPackedImage(bitmap, workspace, packed);
+                    } finally {
+                        instrumentation.end(PipelineStage.PREPROCESS, start, 0);
+                    }
+                    if (isStale(request)) {
+                        return;
+                    }
+
+                    start = instrumentation.begin(PipelineStage.INFERENCE);
+                    Classification classification;
+                    try {
+                        classification = models.classify(packed);
+                    } finally {
+                        instrumentation.end(PipelineStage.INFERENCE, start, 0);
+                    }
+                    Log.d(TAG, "Time to result: " + (System.nanoTime() - submitted) / 1000000 + " ms");
+                    if (!firstResultDelivered) {
+                        firstResultDelivered = true;
+                        Log.i(TAG, "First result " + (System.nanoTime() - created) / 1000000 + " ms after start");
+                    }
+                    deliver(request, bitmap, classification);
+                } catch (Throwable tr) {
+                    deliverError(request, tr);
+                }
+            }
+        });
+    }
+
+    private boolean isStale(int request) {
+        return request != generation.get() || Thread.currentThread().isInterrupted();
+    }
+
+    private void deliver(final int request, final Bitmap bitmap, final Classification classification) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (request == generation.get()) {
+                    listener.onClassified(bitmap, classification);
+                }
+            }
+        });
+    }
+
+    private void deliverError(final int request, final Throwable tr) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (request == generation.get()) {
+                    listener.onError(tr);
+                }
+            }
+        });
+    }
+}
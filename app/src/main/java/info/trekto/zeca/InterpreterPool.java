@@ -0,0 +1,203 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import static org.tensorflow.lite.support.common.FileUtil.loadMappedFile;
+
+/**
+ * Bounded pool of classifiers, each with its own interpreter, workspace and input/output buffers.
+ * All interpreters share the same memory-mapped model.<p>
+ * An interpreter cannot be used by two threads at the same time. The pool lets several threads
+ * classify in parallel: each of them borrows a classifier, uses it alone and returns it.
+ * If all classifiers are borrowed, {@link #borrow()} waits.
+ */
+class InterpreterPool {
+    private final BlockingQueue<Classifier> available;
+    private final List<Classifier> all;
+
+    /**
+     * @param context Used to load the model from the assets.
+     * @param config  Config of every interpreter. One thread per interpreter is usually best
+     *                because the pool already runs them in parallel.
+     * @param size    Max number of interpreters used at the same time.
+     * @throws IOException If the model cannot be loaded.
+     */
+    InterpreterPool(Context context, ClassifierConfig config, int size) throws IOException {
+        this(loadMappedFile(context, Classifier.MODEL_FILE), config, size);
+    }
+
+    /**
+     * @param model  Model loaded with loadMappedFile. Shared by all interpreters.
+     * @param config Config of every interpreter.
+     * @param size   Max number of interpreters used at the same time.
+     */
+    InterpreterPool(MappedByteBuffer model, ClassifierConfig config, int size) {
+        this(model, Classifier.MODEL_FILE, config, size);
+    }
+
+    /**
+     * @param model     Memory-mapped model. Shared by all interpreters.
+     * @param modelName Identifies the model in the {@link ResultCache}.
+     * @param config    Config of every interpreter.
+     * @param size      Max number of interpreters used at the same time.
+     */
+    InterpreterPool(MappedByteBuffer model, String modelName, ClassifierConfig config, int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Pool size must be positive: " + size);
+        }
+        available = new ArrayBlockingQueue<>(size);
+        all = new ArrayList<>(size);
+        try {
+            for (int i = 0; i < size; i++) {
+                Classifier classifier = new Classifier(model, modelName, config);
+                all.add(classifier);
+                available.add(classifier);
+            }
+        } catch (RuntimeException ex) {
+            // Nobody gets the pool, so nobody else can close the interpreters already created
+            close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Take a classifier for exclusive use. It must be given back with {@link #release(Classifier)}.
+     *
+     * @return Classifier not used by any other thread.
+     * @throws InterruptedException If interrupted while waiting for a free classifier.
+     */
+    Classifier borrow() throws InterruptedException {
+        return available.take();
+    }
+
+    /**
+     * @param classifier Classifier taken by {@link #borrow()}.
+     */
+    void release(Classifier classifier) {
+        available.add(classifier);
+    }
+
+    /**
+     * Borrow a classifier, classify the image with it and give it back.
+     *
+     * @param bitmap Image containing one digit.
+     * @return The classification.
+     * @throws InterruptedException If interrupted while waiting for a free classifier.
+     */
+    Classification classify(Bitmap bitmap) throws InterruptedException {
+        Classifier classifier = borrow();
+        try {
+            return classifier.classify(bitmap);
+        } finally {
+            release(classifier);
+        }
+    }
+
+    /**
+     * Borrow a classifier, classify the last image preprocessed by the workspace with it and give it back.
+     *
+     * @param workspace Workspace which preprocessed the image.
+     * @param cache     Used instead of the cache of the pool or null for no cache.
+     * @return The classification.
+     * @throws InterruptedException If interrupted while waiting for a free classifier.
+     */
+    Classification classify(PreprocessingWorkspace workspace, ResultCache cache) throws InterruptedException {
+        Classifier classifier = borrow();
+        try {
+            return classifier.classify(workspace, cache);
+        } finally {
+            release(classifier);
+        }
+    }
+
+    /**
+     * Borrow a classifier, classify the bit-packed image with it and give it back.
+     *
+     * @param image Black and white centered image.
+     * @return The classification.
+     * @throws InterruptedException If interrupted while waiting for a free classifier.
+     */
+    Classification classify(BitPackedImage image) throws InterruptedException {
+        Classifier classifier = borrow();
+        try {
+            return classifier.classify(image);
+        } finally {
+            release(classifier);
+        }
+    }
+
+    /**
+     * Check that the model takes one 32x32 image and gives one probability.
+     *
+     * @throws IllegalArgumentException If it does not.
+     */
+    void validateShapes() {
+        all.get(0).validateShapes();
+    }
+
+    /**
+     * Run every interpreter once. Must be called before the pool is used by other threads.
+     */
+    void warmUp() {
+        for (Classifier classifier : all) {
+            classifier.warmUp();
+        }
+    }
+
+    /**
+     * @param cache Cache shared by all classifiers of the pool or null for no cache.
+     */
+    void setCache(ResultCache cache) {
+        for (Classifier classifier : all) {
+            classifier.setCache(cache);
+        }
+    }
+
+    /**
+     * @param preClassifier Shared by all classifiers of the pool or null to always run the model.
+     * @param validate      See {@link Classifier#setPreClassifier(HoleClassifier, boolean)}.
+     */
+    void setPreClassifier(HoleClassifier preClassifier, boolean validate) {
+        for (Classifier classifier : all) {
+            classifier.setPreClassifier(preClassifier, validate);
+        }
+    }
+
+    int size() {
+        return all.size();
+    }
+
+    /**
+     * Close all interpreters. Must be called when none of them is borrowed.
+     */
+    void close() {
+        for (Classifier classifier : all) {
+            classifier.closeInterpreter();
+        }
+        available.clear();
+    }
+}
@@ -20,11 +20,9 @@ import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
-import android.content.res.AssetManager;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.graphics.SurfaceTexture;
 import android.graphics.drawable.BitmapDrawable;
-import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
@@ -33,6 +31,7 @@ import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
+import android.view.TextureView;
 import android.view.View;
 import android.widget.ImageView;
 import android.widget.TextView;
@@ -45,51 +44,67 @@ import androidx.appcompat.view.menu.MenuBuilder;
 import androidx.appcompat.widget.PopupMenu;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.text.DecimalFormat;
 
+import static android.Manifest.permission.CAMERA;
 import static android.Manifest.permission.READ_EXTERNAL_STORAGE;
 import static android.content.Intent.ACTION_OPEN_DOCUMENT_TREE;
 import static android.content.pm.PackageManager.PERMISSION_GRANTED;
-import static info.trekto.zeca.ImagePreprocessor.convertToBlackAndWhiteCenteredImage;
-import static info.trekto.zeca.ImagePreprocessor.getBitmapFromUri;
-import static info.trekto.zeca.ImagePreprocessor.getCameraPhotoOrientation;
-import static info.trekto.zeca.ImagePreprocessor.getPixelsValues;
-import static info.trekto.zeca.ImagePreprocessor.normalize;
-import static info.trekto.zeca.ImagePreprocessor.rotateBitmap;
-import static info.trekto.zeca.ImagePreprocessor.scaleBitmap;
-
-public class MainActivity extends AppCompatActivity {
+
+public class MainActivity extends AppCompatActivity implements InferencePipeline.Listener, CameraStream.Listener {
     private static final String TAG = "MainActivity";
     private static final DecimalFormat format = new DecimalFormat("0.00");
     private static final int OPEN_PICTURE_PERMISSION_REQUEST_CODE = 28;  // 28 is a perfect number. See Wikipedia.
     private static final int OPEN_IMAGE_REQUEST_CODE = OPEN_PICTURE_PERMISSION_REQUEST_CODE + 1;
+    private static final int CAMERA_PERMISSION_REQUEST_CODE = OPEN_IMAGE_REQUEST_CODE + 1;
+    private static final float CAMERA_ROI_FRACTION = 0.25f;
+    private static final int THUMBNAIL_SIZE = 64;
     private TextView headerText;
     private ImageView imageView;
-    private Classifier classifier;
+    private TextureView cameraView;
+    private InferencePipeline pipeline;
+    private CameraStream cameraStream;
+    private ThumbnailCache thumbnails;
+    private PopupMenu openMenu;
 
     /**
-     * Load image from uri and classify it using processPhoto(Bitmap bitmap).
+     * Load image from uri and classify it in the background.
      * @param uri Image URI
      */
     private void processPhoto(Uri uri) {
-        Bitmap bitmap = getBitmapFromUri(uri, this);
-        bitmap = rotateBitmap(bitmap, getCameraPhotoOrientation(uri, this));
-        processPhoto(bitmap);
+        stopCamera();
+        pipeline.classify(uri);
     }
 
     /**
-     * Preprocess image and classify it.
-     * @param bitmap Image
+     * Load sample image from the assets and classify it in the background.
+     * @param filename Image from the assets
      */
-    private void processPhoto(Bitmap bitmap) {
-        Classification classification = classifier.classify(
-                normalize(
-                        getPixelsValues(
-                                convertToBlackAndWhiteCenteredImage(bitmap))));
+    private void processAsset(String filename) {
+        stopCamera();
+        pipeline.classifyAsset(filename);
+    }
+
+    @Override
+    public void onClassified(Bitmap image, Classification classification) {
+        showClassification(classification);
+        imageView.setImageBitmap(image);
+        if (pipeline.getInstrumentation().isEnabled()) {
+            Log.d(TAG, "Stages:\n" + pipeline.getInstrumentation().snapshot());
+            Log.d(TAG, pipeline.getPreClassifier().toString());
+        }
+    }
 
+    @Override
+    public void onFrameClassified(Classification classification, float fps, long latencyMillis, int droppedFrames) {
         showClassification(classification);
-        imageView.setImageBitmap(bitmap);
+        headerText.append("\n" + format.format(fps) + " fps   " + latencyMillis + " ms   dropped: " + droppedFrames);
+    }
+
+    @Override
+    public void onError(Throwable tr) {
+        Log.e(TAG, "Cannot classify image", tr);
+        showToast(this, "Cannot classify image: " + tr.getLocalizedMessage(), Toast.LENGTH_LONG);
     }
 
     /**
@@ -112,21 +127,42 @@ public class MainActivity extends AppCompatActivity {
         setContentView(R.layout.activity_main);
         headerText = findViewById(R.id.header_text);
         imageView = findViewById(R.id.image_view);
+        cameraView = findViewById(R.id.camera_view);
 
-        classifier = new Classifier(this);
-
-        InputStream inputStream;
-        try {
-            inputStream = getAssets().open("e0_0a_receipt_2020-Jan-06_21-56-54-229_11.png");
-            processPhoto(BitmapFactory.decodeStream(inputStream));
-        } catch (IOException ex) {
-            Log.e(TAG, "Cannot open initial image!", ex);
+        thumbnails = new ThumbnailCache(getAssets(), THUMBNAIL_SIZE, new Runnable() {
+            @Override
+            public void run() {
+                // The menu may be opened before the sample images are listed
+                if (openMenu != null) {
+                    populateMenu(openMenu.getMenu());
+                }
+            }
+        });
+        pipeline = new InferencePipeline(this, this);
+        if (BuildConfig.DEBUG) {
+            pipeline.getInstrumentation().setEnabled(true);
+            pipeline.getInstrumentation().setTracer(new AndroidTracer());
         }
+        pipeline.classifyAsset("e0_0a_receipt_2020-Jan-06_21-56-54-229_11.png");
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        // A model retrained meanwhile replaces the current one in the background
+        pipeline.getModels().loadLatestInBackground();
+    }
+
+    @Override
+    protected void onPause() {
+        stopCamera();
+        super.onPause();
     }
 
     @Override
     protected void onDestroy() {
-        classifier.closeInterpreter();
+        pipeline.shutdown();
+        thumbnails.shutdown();
         super.onDestroy();
     }
 
@@ -164,6 +200,12 @@ public class MainActivity extends AppCompatActivity {
                 } else {
                     showToast(this, "Read permission needed", Toast.LENGTH_LONG);
                 }
+            } else if (requestCode == CAMERA_PERMISSION_REQUEST_CODE) {
+                if (permissionGranted(grantResults)) {
+                    startCamera();
+                } else {
+                    showToast(this, "Camera permission needed", Toast.LENGTH_LONG);
+                }
             }
         } catch (Throwable tr) {
             Log.e(TAG, "Error onRequestPermissionsResult", tr);
@@ -184,6 +226,72 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    /**
+     * Start or stop classifying the middle of the camera preview continuously.
+     */
+    public void toggleCamera(MenuItem item) {
+        if (cameraStream != null) {
+            stopCamera();
+        } else if (androidx.core.app.ActivityCompat.checkSelfPermission(this, CAMERA) == PERMISSION_GRANTED) {
+            startCamera();
+        } else {
+            requestPermission(this, CAMERA, CAMERA_PERMISSION_REQUEST_CODE);
+        }
+    }
+
+    private void startCamera() {
+        imageView.setVisibility(View.GONE);
+        cameraView.setVisibility(View.VISIBLE);
+        if (cameraView.isAvailable()) {
+            startCameraStream(cameraView.getSurfaceTexture());
+            return;
+        }
+        cameraView.setSurfaceTextureListener(new TextureView.SurfaceTextureListener() {
+            @Override
+            public void onSurfaceTextureAvailable(SurfaceTexture surface, int width, int height) {
+                startCameraStream(surface);
+            }
+
+            @Override
+            public void onSurfaceTextureSizeChanged(SurfaceTexture surface, int width, int height) {
+            }
+
+            @Override
+            public boolean onSurfaceTextureDestroyed(SurfaceTexture surface) {
+                stopCamera();
+                return true;
+            }
+
+            @Override
+            public void onSurfaceTextureUpdated(SurfaceTexture surface) {
+            }
+        });
+    }
+
+    private void startCameraStream(SurfaceTexture surface) {
+        if (cameraStream != null) {
+            return;
+        }
+        cameraStream = new CameraStream(pipeline.getModels(), this, CAMERA_ROI_FRACTION);
+        try {
+            // Surface.ROTATION_0..ROTATION_270 are 0..3
+            cameraStream.start(surface, getWindowManager().getDefaultDisplay().getRotation() * 90);
+        } catch (IOException | RuntimeException ex) {
+            Log.e(TAG, "Cannot start camera", ex);
+            showToast(this, "Cannot start camera: " + ex.getLocalizedMessage(), Toast.LENGTH_LONG);
+            stopCamera();
+        }
+    }
+
+    private void stopCamera() {
+        if (cameraStream != null) {
+            cameraStream.stop();
+            cameraStream = null;
+        }
+        cameraView.setVisibility(View.GONE);
+        imageView.setVisibility(View.VISIBLE);
+    }
+
     private static void requestPermission(Activity activity, String permission, int requestCode) {
         androidx.core.app.ActivityCompat.requestPermissions(activity, new String[]{permission}, requestCode);
     }
@@ -222,25 +330,29 @@ public class MainActivity extends AppCompatActivity {
         return grantResults.length > 0 && grantResults[0] == PERMISSION_GRANTED;
     }
 
-    private void populateMenu(Menu menu) throws IOException {
-        AssetManager assetManager = getAssets();
-        int itemNumber = 2; // For Open and About menu items
-        for(final String filename : assetManager.list("")) {
+    /**
+     * Icons come from the thumbnail cache. If a thumbnail is not decoded yet, its icon is set when it is ready.
+     */
+    private void populateMenu(Menu menu) {
+        int itemNumber = 3; // For Open, About and Camera menu items
+        for (final String filename : thumbnails.getFilenames()) {
             if (itemNumber >= menu.size()) {
                 break;
             }
-            if (filename.endsWith(".png")) {
-                final Bitmap bitmap = BitmapFactory.decodeStream(assetManager.open(filename));
-                Drawable icon = new BitmapDrawable(getResources(), scaleBitmap(bitmap, 64, true));
-                menu.getItem(itemNumber).setIcon(icon);
-                menu.getItem(itemNumber++).setOnMenuItemClickListener(new MenuItem.OnMenuItemClickListener() {
-                    @Override
-                    public boolean onMenuItemClick(MenuItem menuItem) {
-                        processPhoto(bitmap);
-                        return false;
-                    }
-                });
-            }
+            final MenuItem item = menu.getItem(itemNumber++);
+            thumbnails.get(filename, new ThumbnailCache.Callback() {
+                @Override
+                public void onThumbnail(String filename, Bitmap thumbnail) {
+                    item.setIcon(new BitmapDrawable(getResources(), thumbnail));
+                }
+            });
+            item.setOnMenuItemClickListener(new MenuItem.OnMenuItemClickListener() {
+                @Override
+                public boolean onMenuItemClick(MenuItem menuItem) {
+                    processAsset(filename);
+                    return false;
+                }
+            });
         }
     }
 
@@ -250,11 +362,14 @@ public class MainActivity extends AppCompatActivity {
         MenuInflater inflater = popup.getMenuInflater();
         inflater.inflate(R.menu.menu_main, popup.getMenu());
 
-        try {
-            populateMenu(popup.getMenu());
-        } catch (IOException ex) {
-            Log.e(TAG, "Cannot populateMenu", ex);
-        }
+        populateMenu(popup.getMenu());
+        openMenu = popup;
+        popup.setOnDismissListener(new PopupMenu.OnDismissListener() {
+            @Override
+            public void onDismiss(PopupMenu menu) {
+                openMenu = null;
+            }
+        });
 
         // For icons
         if (popup.getMenu() instanceof MenuBuilder) {
@@ -0,0 +1,309 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.tensorflow.lite.support.common.FileUtil.loadMappedFile;
+
+/**
+ * The active model with its interpreters. Retrained models can replace it without rebuilding the app.<p>
+ * A model is loaded from the assets or from the app storage, validated and warmed up before it becomes active.
+ * Loading runs on a background thread of the registry. The switch is done by a {@link ModelSlot}:
+ * classifications already running finish on the old model, the next ones use the new one.
+ * The old model is closed when the last of its classifications is done. Classifying takes no locks
+ * to find the model, only a reference count. The registry is shared by the threads which classify,
+ * e.g. the pipeline and the camera stream, one interpreter each.<p>
+ * The model name is part of the key of the {@link ResultCache}, so the results of the old model are not used.
+ */
+class ModelRegistry {
+    private static final String TAG = "ModelRegistry";
+
+    /**
+     * Directory in the app storage (getFilesDir()) where retrained models are put.
+     */
+    static final String MODELS_DIRECTORY = "models";
+
+    private final ModelSlot<InterpreterPool> models = new ModelSlot<InterpreterPool>() {
+        @Override
+        protected void close(String name, InterpreterPool pool) {
+            pool.close();
+            Log.i(TAG, "Closed " + name);
+        }
+    };
+    // Loads one model at a time, so a model is never loaded twice
+    private final ExecutorService loader = Executors.newSingleThreadExecutor();
+    private final Context context;
+    private final int poolSize;
+
+    // Used for the models loaded afterwards
+    private volatile ClassifierConfig config = ClassifierConfig.DEFAULT;
+    private volatile ResultCache cache;
+    private volatile HoleClassifier preClassifier;
+    private volatile boolean validatePreClassifier;
+
+    // Of the last model made active
+    private volatile long loadNanos;
+    private volatile long warmUpNanos;
+
+    /**
+     * @param context  Used to load models from the assets and the app storage.
+     * @param poolSize Number of interpreters of each model, i.e. how many threads can classify at the same time.
+     */
+    ModelRegistry(Context context, int poolSize) {
+        this.context = context.getApplicationContext();
+        this.poolSize = poolSize;
+    }
+
+    void setConfig(ClassifierConfig config) {
+        this.config = config;
+    }
+
+    void setCache(ResultCache cache) {
+        this.cache = cache;
+    }
+
+    void setPreClassifier(HoleClassifier preClassifier, boolean validate) {
+        this.preClassifier = preClassifier;
+        this.validatePreClassifier = validate;
+    }
+
+    /**
+     * Load the newest model from the app storage on the background thread of the registry and make it active.
+     * The current model keeps classifying until then. Nothing is loaded if the newest model is already active.
+     * If there is no model in the storage or it cannot be loaded, the bundled one is used,
+     * unless another model is already active.
+     *
+     * @return Completes with the name of the active model or fails if no model can be loaded.
+     */
+    Future<String> loadLatestInBackground() {
+        return loader.submit(new Callable<String>() {
+            @Override
+            public String call() throws IOException {
+                loadLatest();
+                return getActiveName();
+            }
+        });
+    }
+
+    /**
+     * Load a model from a file on the background thread of the registry and make it active.
+     * The current model keeps classifying until then.
+     *
+     * @param file Model file.
+     * @return Completes with the name of the new model or fails if it cannot be loaded.
+     */
+    Future<String> loadFileInBackground(final File file) {
+        return loader.submit(new Callable<String>() {
+            @Override
+            public String call() throws IOException {
+                loadFile(file);
+                return getActiveName();
+            }
+        });
+    }
+
+    /**
+     * See {@link #loadLatestInBackground()}. Blocks until the model is warmed up.
+     */
+    private void loadLatest() throws IOException {
+        File latest = findLatestInStorage();
+        String active = getActiveName();
+        if (latest == null) {
+            if (active == null) {
+                loadAsset(Classifier.MODEL_FILE);
+            }
+        } else if (!nameOf(latest).equals(active)) {
+            try {
+                loadFile(latest);
+            } catch (IOException | IllegalArgumentException ex) {
+                if (active != null) {
+                    Log.e(TAG, "Cannot load " + latest + ", keeping " + active, ex);
+                } else {
+                    Log.e(TAG, "Cannot load " + latest + ", using " + Classifier.MODEL_FILE, ex);
+                    loadAsset(Classifier.MODEL_FILE);
+                }
+            }
+        }
+    }
+
+    /**
+     * Load a model from the assets and make it active. Blocks until it is warmed up.
+     *
+     * @param filename Model file in the assets.
+     * @throws IOException              If the model cannot be loaded.
+     * @throws IllegalArgumentException If the model does not fit the classifier.
+     */
+    void loadAsset(String filename) throws IOException {
+        activate(loadMappedFile(context, filename), filename);
+    }
+
+    /**
+     * Load a model from a file and make it active. Blocks until it is warmed up.
+     *
+     * @param file Model file, e.g. from {@link #findLatestInStorage()}.
+     * @throws IOException              If the model cannot be loaded.
+     * @throws IllegalArgumentException If the model does not fit the classifier.
+     */
+    void loadFile(File file) throws IOException {
+        MappedByteBuffer model;
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            FileChannel channel = inputStream.getChannel();
+            model = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            inputStream.close();
+        }
+        activate(model, nameOf(file));
+    }
+
+    /**
+     * A replaced file with the same name must not get the cached results of the old one.
+     *
+     * @return Name of the model in the file.
+     */
+    private static String nameOf(File file) {
+        return file.getName() + "@" + file.lastModified();
+    }
+
+    /**
+     * @return The most recently modified .tflite file in {@link #MODELS_DIRECTORY} or null if there is none.
+     */
+    File findLatestInStorage() {
+        File[] files = new File(context.getFilesDir(), MODELS_DIRECTORY).listFiles();
+        File latest = null;
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(".tflite") && (latest == null || file.lastModified() > latest.lastModified())) {
+                    latest = file;
+                }
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * Classify the last image preprocessed by the workspace with the active model.
+     *
+     * @param workspace Workspace which preprocessed the image.
+     * @param cache     Used instead of the cache of the registry, e.g. a small one for a camera stream,
+     *                  or null for no cache.
+     * @return The classification or null if no model is loaded.
+     * @throws InterruptedException If interrupted while waiting for a free interpreter.
+     */
+    Classification classify(PreprocessingWorkspace workspace, ResultCache cache) throws InterruptedException {
+        ModelSlot.Lease<InterpreterPool> lease = models.acquire();
+        if (lease == null) {
+            return null;
+        }
+        try {
+            return lease.model.classify(workspace, cache);
+        } finally {
+            lease.release();
+        }
+    }
+
+    /**
+     * Classify a bit-packed image with the active model.
+     *
+     * @param image Black and white centered image.
+     * @return The classification or null if no model is loaded.
+     * @throws InterruptedException If interrupted while waiting for a free interpreter.
+     */
+    Classification classify(BitPackedImage image) throws InterruptedException {
+        ModelSlot.Lease<InterpreterPool> lease = models.acquire();
+        if (lease == null) {
+            return null;
+        }
+        try {
+            return lease.model.classify(image);
+        } finally {
+            lease.release();
+        }
+    }
+
+    /**
+     * @return Name of the active model or null if no model is loaded.
+     */
+    String getActiveName() {
+        return models.getActiveName();
+    }
+
+    /**
+     * @return Time to load the last activated model and create its interpreters, in nanoseconds.
+     */
+    long getLoadNanos() {
+        return loadNanos;
+    }
+
+    /**
+     * @return Time to warm up the interpreters of the last activated model, in nanoseconds.
+     */
+    long getWarmUpNanos() {
+        return warmUpNanos;
+    }
+
+    /**
+     * Stop loading. The active model is closed when its running classifications are done.
+     * A model still loading is closed as soon as it is ready, it never becomes active.
+     */
+    void close() {
+        loader.shutdownNow();
+        models.close();
+    }
+
+    private void activate(MappedByteBuffer buffer, String name) {
+        long start = System.nanoTime();
+        long warmUpStart;
+        InterpreterPool pool = null;
+        try {
+            // Closes its interpreters itself if one of them cannot be created
+            pool = new InterpreterPool(buffer, name, config, poolSize);
+            warmUpStart = System.nanoTime();
+            pool.validateShapes();
+            pool.setCache(cache);
+            pool.setPreClassifier(preClassifier, validatePreClassifier);
+            pool.warmUp();
+        } catch (RuntimeException ex) {
+            if (pool != null) {
+                pool.close();
+            }
+            throw ex;
+        }
+        long end = System.nanoTime();
+        loadNanos = warmUpStart - start;
+        warmUpNanos = end - warmUpStart;
+
+        if (!models.activate(name, pool)) {
+            Log.i(TAG, "Closed before " + name + " became active");
+            return;
+        }
+        Log.i(TAG, "Active model: " + name + " (load: " + loadNanos / 1000000 + " ms, warm-up: "
+                + warmUpNanos / 1000000 + " ms)");
+    }
+}
@@ -0,0 +1,46 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+/**
+ * How long the steps of loading the model took on the background thread. All times are in nanoseconds.
+ */
+class StartupTimings {
+    /** Choosing the interpreter config: timing all candidates or reading the remembered one. */
+    final long configSelection;
+    /** Memory-mapping the model and creating the interpreter. */
+    final long modelLoad;
+    /** The first inference, which allocates the tensors. */
+    final long warmUp;
+    /** From the creation of the pipeline until the classifier is ready, including waiting for the thread. */
+    final long total;
+
+    StartupTimings(long configSelection, long modelLoad, long warmUp, long total) {
+        this.configSelection = configSelection;
+        this.modelLoad = modelLoad;
+        this.warmUp = warmUp;
+        this.total = total;
+    }
+
+    @Override
+    public String toString() {
+        return "config selection: " + configSelection / 1000000 + " ms"
+                + ", model load: " + modelLoad / 1000000 + " ms"
+                + ", warm-up: " + warmUp / 1000000 + " ms"
+                + ", total: " + total / 1000000 + " ms";
+    }
+}
@@ -0,0 +1,190 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static info.trekto.zeca.ImagePreprocessor.calculateInSampleSize;
+import static info.trekto.zeca.ImagePreprocessor.scaleBitmap;
+
+/**
+ * Thumbnails of the sample images from the assets, decoded once on a background thread.<p>
+ * Images are decoded with inSampleSize, so the full size bitmaps are never created.
+ * The thumbnails are kept in a memory-bounded LruCache. An evicted thumbnail is decoded again when requested.<p>
+ * Methods must be called from the UI thread.
+ */
+class ThumbnailCache {
+    private static final String TAG = "ThumbnailCache";
+
+    interface Callback {
+        /**
+         * Called on the UI thread.
+         *
+         * @param filename  The sample image.
+         * @param thumbnail Its thumbnail.
+         */
+        void onThumbnail(String filename, Bitmap thumbnail);
+    }
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final AssetManager assets;
+    private final int size;
+    private final LruCache<String, Bitmap> cache;
+    private volatile List<String> filenames = Collections.emptyList();
+
+    /**
+     * Start listing and decoding the sample images in the background.
+     *
+     * @param assets   Where the sample images are.
+     * @param size     Max width and height of a thumbnail in pixels.
+     * @param onListed Run on the UI thread when {@link #getFilenames()} is ready, e.g. to fill a menu opened before.
+     */
+    ThumbnailCache(AssetManager assets, int size, final Runnable onListed) {
+        this.assets = assets;
+        this.size = size;
+
+        // A small part of the memory is enough for dozens of thumbnails
+        int maxKilobytes = (int) (Runtime.getRuntime().maxMemory() / 1024 / 32);
+        cache = new LruCache<String, Bitmap>(maxKilobytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                // Thumbnails under 1 KB would be free and never evicted
+                return Math.max(1, bitmap.getByteCount() / 1024);
+            }
+        };
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<String> pngs = new ArrayList<>();
+                try {
+                    for (String filename : ThumbnailCache.this.assets.list("")) {
+                        if (filename.endsWith(".png")) {
+                            pngs.add(filename);
+                        }
+                    }
+                } catch (IOException ex) {
+                    Log.e(TAG, "Cannot list assets", ex);
+                }
+                filenames = Collections.unmodifiableList(pngs);
+                mainHandler.post(onListed);
+                for (String filename : pngs) {
+                    load(filename);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return Names of the sample images. Empty until the assets are listed.
+     */
+    List<String> getFilenames() {
+        return filenames;
+    }
+
+    /**
+     * Give the thumbnail to the callback. Immediately if it is in the cache,
+     * otherwise when it is decoded in the background.
+     *
+     * @param filename Sample image from the assets.
+     * @param callback Receives the thumbnail. Not called if the image cannot be decoded.
+     */
+    void get(final String filename, final Callback callback) {
+        Bitmap thumbnail = cache.get(filename);
+        if (thumbnail != null) {
+            callback.onThumbnail(filename, thumbnail);
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap thumbnail = load(filename);
+                if (thumbnail != null) {
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onThumbnail(filename, thumbnail);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    void shutdown() {
+        mainHandler.removeCallbacksAndMessages(null);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Called on the background thread.
+     *
+     * @return The thumbnail from the cache or decoded and put in the cache. Null if it cannot be decoded.
+     */
+    private Bitmap load(String filename) {
+        Bitmap thumbnail = cache.get(filename);
+        if (thumbnail != null) {
+            return thumbnail;
+        }
+        try {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            decode(filename, options);
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight, size);
+
+            Bitmap bitmap = decode(filename, options);
+            if (bitmap == null) {
+                Log.e(TAG, "Cannot decode " + filename);
+                return null;
+            }
+            thumbnail = scaleBitmap(bitmap, size, true);
+            if (thumbnail != bitmap) {
+                bitmap.recycle();
+            }
+            cache.put(filename, thumbnail);
+            return thumbnail;
+        } catch (IOException ex) {
+            Log.e(TAG, "Cannot load " + filename, ex);
+            return null;
+        }
+    }
+
+    private Bitmap decode(String filename, BitmapFactory.Options options) throws IOException {
+        InputStream inputStream = assets.open(filename);
+        try {
+            return BitmapFactory.decodeStream(inputStream, null, options);
+        } finally {
+            inputStream.close();
+        }
+    }
+}
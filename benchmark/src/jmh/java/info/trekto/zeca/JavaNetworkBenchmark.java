@@ -0,0 +1,92 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import static info.trekto.zeca.PreprocessingWorkspace.FLOAT_BYTES;
+import static info.trekto.zeca.PreprocessingWorkspace.TOTAL_PIXELS;
+
+/**
+ * Inference of the bundled model with {@link JavaNetwork} over the preprocessed sample images.
+ * One invocation classifies a batch, so divide the time by the batch size to get the time per image.
+ * {@link #classify()} also preprocesses the images, like the app does for every image.
+ * TensorFlow Lite is compared with it by {@code :cli:compareBackends}, its native library is not available here.
+ */
+@State(Scope.Thread)
+public class JavaNetworkBenchmark {
+    private static final String MODEL_FILE = "2020-Mar-31_20-03-28_LATENCY_antialiasing_B-W.tflite";
+
+    @Param({"1", "32"})
+    public int batchSize;
+
+    private JavaNetwork network;
+    private List<SampleImage> samples;
+    private PreprocessingWorkspace workspace;
+    private ByteBuffer input;
+    private ByteBuffer output;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        String assets = System.getProperty("zeca.assets");
+        try (RandomAccessFile file = new RandomAccessFile(new File(assets, MODEL_FILE), "r")) {
+            network = new JavaNetwork(file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length()));
+        }
+
+        // The samples one after another, repeated to fill the batch
+        samples = SampleImage.loadAll(assets);
+        workspace = new PreprocessingWorkspace();
+        input = ByteBuffer.allocateDirect(batchSize * TOTAL_PIXELS * FLOAT_BYTES).order(ByteOrder.nativeOrder());
+        for (int i = 0; i < batchSize; i++) {
+            SampleImage sample = samples.get(i % samples.size());
+            workspace.convertToBlackAndWhiteCenteredImage(sample.argb, sample.width, sample.height);
+            workspace.writeNormalized(input, i * TOTAL_PIXELS * FLOAT_BYTES);
+        }
+        output = ByteBuffer.allocateDirect(batchSize * FLOAT_BYTES).order(ByteOrder.nativeOrder());
+    }
+
+    @Benchmark
+    public ByteBuffer run() {
+        network.run(input, output, batchSize);
+        return output;
+    }
+
+    @Benchmark
+    public ByteBuffer classify() {
+        for (int i = 0; i < batchSize; i++) {
+            SampleImage sample = samples.get(next);
+            next = (next + 1) % samples.size();
+            workspace.convertToBlackAndWhiteCenteredImage(sample.argb, sample.width, sample.height);
+            workspace.writeNormalized(input, i * TOTAL_PIXELS * FLOAT_BYTES);
+        }
+        network.run(input, output, batchSize);
+        return output;
+    }
+}
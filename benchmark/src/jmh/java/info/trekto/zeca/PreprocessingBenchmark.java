@@ -0,0 +1,107 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+import static info.trekto.zeca.PreprocessingWorkspace.FLOAT_BYTES;
+import static info.trekto.zeca.PreprocessingWorkspace.TOTAL_PIXELS;
+
+/**
+ * Stages of the preprocessing over the sample images from the app assets.
+ * Every invocation takes the next sample, so the result is an average over all of them.
+ */
+@State(Scope.Thread)
+public class PreprocessingBenchmark {
+    private List<SampleImage> samples;
+    private PreprocessingWorkspace workspace;
+    private ByteBuffer input;
+    private BitPackedImage image;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        samples = SampleImage.loadAll(System.getProperty("zeca.assets"));
+        workspace = new PreprocessingWorkspace();
+        input = ByteBuffer.allocateDirect(TOTAL_PIXELS * FLOAT_BYTES).order(ByteOrder.nativeOrder());
+        image = new BitPackedImage();
+
+        // Warm up the workspace with the biggest image, so the benchmarks measure the steady state.
+        for (SampleImage sample : samples) {
+            workspace.convertToBlackAndWhiteCenteredImage(sample.argb, sample.width, sample.height);
+        }
+        workspace.pack(image);
+    }
+
+    private SampleImage nextSample() {
+        SampleImage sample = samples.get(next);
+        next = (next + 1) % samples.size();
+        return sample;
+    }
+
+    @Benchmark
+    public int[] convertToBlackAndWhiteCenteredImage() {
+        SampleImage sample = nextSample();
+        return workspace.convertToBlackAndWhiteCenteredImage(sample.argb, sample.width, sample.height);
+    }
+
+    @Benchmark
+    public int[] getPixelsValues() {
+        return workspace.getPixelsValues();
+    }
+
+    @Benchmark
+    public ByteBuffer normalize() {
+        workspace.writeNormalized(input, 0);
+        return input;
+    }
+
+    @Benchmark
+    public ByteBuffer preprocessAndNormalize() {
+        SampleImage sample = nextSample();
+        workspace.convertToBlackAndWhiteCenteredImage(sample.argb, sample.width, sample.height);
+        workspace.writeNormalized(input, 0);
+        return input;
+    }
+
+    /**
+     * What the app does for every image: preprocess straight into the bit-packed image kept by the cache.
+     */
+    @Benchmark
+    public BitPackedImage convertToBitPackedImage() {
+        SampleImage sample = nextSample();
+        workspace.convertToBitPackedImage(sample.argb, sample.width, sample.height, image);
+        return image;
+    }
+
+    /**
+     * Unpacks the bit-packed image in the input of the model, like {@code Classifier.writeInput}.
+     */
+    @Benchmark
+    public ByteBuffer writePackedInput() {
+        TensorFormat.FLOAT.writeImage(image, workspace.getLayout(), input, 0);
+        return input;
+    }
+}
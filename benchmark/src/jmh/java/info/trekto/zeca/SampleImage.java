@@ -0,0 +1,66 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decoded PNG kept as ARGB pixels, the same form Bitmap.getPixels() gives on Android.
+ */
+class SampleImage {
+    final String name;
+    final int[] argb;
+    final int width;
+    final int height;
+
+    private SampleImage(String name, int[] argb, int width, int height) {
+        this.name = name;
+        this.argb = argb;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * @param directory Directory with the sample PNG images (the app assets).
+     * @return All PNG images in the directory.
+     * @throws IOException If the directory has no images or an image cannot be read.
+     */
+    static List<SampleImage> loadAll(String directory) throws IOException {
+        File[] files = directory == null ? null : new File(directory).listFiles();
+        List<SampleImage> samples = new ArrayList<>();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(".png")) {
+                    BufferedImage image = ImageIO.read(file);
+                    int width = image.getWidth();
+                    int height = image.getHeight();
+                    int[] argb = image.getRGB(0, 0, width, height, null, 0, width);
+                    samples.add(new SampleImage(file.getName(), argb, width, height));
+                }
+            }
+        }
+        if (samples.isEmpty()) {
+            throw new IOException("No sample images in " + directory);
+        }
+        return samples;
+    }
+}
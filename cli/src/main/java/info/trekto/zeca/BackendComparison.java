@@ -0,0 +1,193 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.Locale;
+
+import static info.trekto.zeca.BatchClassifier.listImages;
+import static info.trekto.zeca.BatchClassifier.readImage;
+import static info.trekto.zeca.Classification.fromModelOutput;
+import static info.trekto.zeca.PreprocessingWorkspace.FLOAT_BYTES;
+import static info.trekto.zeca.PreprocessingWorkspace.TOTAL_PIXELS;
+import static java.nio.ByteOrder.nativeOrder;
+
+/**
+ * Checks that {@link JavaNetwork} gives the outputs of TensorFlow Lite and compares their speed.<p>
+ * Usage: {@code BackendComparison <directory or dataset> --model <file.tflite> [--batch <n>] [--tolerance <t>]}<p>
+ * Every sample is classified by both backends and the biggest difference of the outputs is reported.
+ * Then both are timed on a single thread, one sample per run and {@code --batch} samples per run.
+ * Exits with 1 if an output differs by more than the tolerance, so it can guard a build.
+ * Needs TensorFlow Lite in the build (see {@link InferenceBackend}).
+ */
+public class BackendComparison {
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        String input = null;
+        String modelFile = null;
+        int batchSize = 32;
+        float tolerance = 0.001f;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--model":
+                    modelFile = args[++i];
+                    break;
+                case "--batch":
+                    batchSize = Integer.parseInt(args[++i]);
+                    break;
+                case "--tolerance":
+                    tolerance = Float.parseFloat(args[++i]);
+                    break;
+                default:
+                    input = args[i];
+            }
+        }
+        if (input == null || modelFile == null || batchSize < 1) {
+            System.err.println("Usage: BackendComparison <directory or dataset> --model <file.tflite>"
+                    + " [--batch <n>] [--tolerance <t>]");
+            System.exit(2);
+        }
+        if (!InferenceBackend.isTfliteAvailable()) {
+            System.err.println("TensorFlow Lite is not in the build. Put its jar in cli/libs.");
+            System.exit(2);
+        }
+
+        File file = new File(input);
+        ByteBuffer samples = file.isFile() ? preprocess(GlyphDataset.open(file)) : preprocess(listImages(file));
+        int count = samples.capacity() / (TOTAL_PIXELS * FLOAT_BYTES);
+        if (count == 0) {
+            System.err.println("No samples in " + input);
+            System.exit(2);
+        }
+        batchSize = Math.min(batchSize, count);
+
+        MappedByteBuffer model = JvmClassifier.loadModel(modelFile);
+        try (InferenceBackend tflite = InferenceBackend.create(InferenceBackend.TFLITE, model);
+             InferenceBackend java = InferenceBackend.create(InferenceBackend.JAVA, model)) {
+            boolean valid = validate(tflite, java, samples, count, tolerance);
+            for (int size : new int[]{1, batchSize}) {
+                long tfliteTime = time(tflite, samples, count, size);
+                long javaTime = time(java, samples, count, size);
+                System.err.println(String.format(Locale.ROOT, "Batch of %d: TFLite %.1f us/image, Java %.1f us/image",
+                        size, tfliteTime / 1e3, javaTime / 1e3));
+            }
+            if (!valid) {
+                System.exit(1);
+            }
+        }
+    }
+
+    /**
+     * @return False if an output differs by more than the tolerance.
+     */
+    private static boolean validate(InferenceBackend tflite, InferenceBackend java, ByteBuffer samples, int count,
+                                    float tolerance) {
+        ByteBuffer tfliteOutput = ByteBuffer.allocateDirect(FLOAT_BYTES).order(nativeOrder());
+        ByteBuffer javaOutput = ByteBuffer.allocateDirect(FLOAT_BYTES).order(nativeOrder());
+        float maxDifference = 0;
+        int outOfTolerance = 0;
+        int differentDigits = 0;
+        for (int i = 0; i < count; i++) {
+            ByteBuffer sample = slice(samples, i, 1);
+            tflite.run(sample, tfliteOutput, 1);
+            java.run(sample, javaOutput, 1);
+
+            float expected = tfliteOutput.getFloat(0);
+            float actual = javaOutput.getFloat(0);
+            float difference = Math.abs(expected - actual);
+            maxDifference = Math.max(maxDifference, difference);
+            if (difference > tolerance) {
+                outOfTolerance++;
+            }
+            if (fromModelOutput(expected).recognizedDigit != fromModelOutput(actual).recognizedDigit) {
+                differentDigits++;
+            }
+        }
+        System.err.println(String.format(Locale.ROOT, "Compared %d samples: max difference %.6f,"
+                        + " %d over the tolerance %.6f, %d recognized as a different digit",
+                count, maxDifference, outOfTolerance, tolerance, differentDigits));
+        return outOfTolerance == 0;
+    }
+
+    /**
+     * Run all full batches of the samples ROUNDS times after one round of warm-up.
+     *
+     * @return Average nanoseconds per sample.
+     */
+    private static long time(InferenceBackend backend, ByteBuffer samples, int count, int batchSize) {
+        int batches = count / batchSize;
+        ByteBuffer output = ByteBuffer.allocateDirect(batchSize * FLOAT_BYTES).order(nativeOrder());
+        long start = 0;
+        for (int round = 0; round <= ROUNDS; round++) {
+            if (round == 1) {
+                start = System.nanoTime();
+            }
+            for (int batch = 0; batch < batches; batch++) {
+                backend.run(slice(samples, batch * batchSize, batchSize), output, batchSize);
+            }
+        }
+        return (System.nanoTime() - start) / ((long) ROUNDS * batches * batchSize);
+    }
+
+    /**
+     * @return View of n samples starting from the given one, in native order.
+     */
+    private static ByteBuffer slice(ByteBuffer samples, int first, int n) {
+        ByteBuffer view = samples.duplicate();
+        view.position(first * TOTAL_PIXELS * FLOAT_BYTES);
+        view.limit((first + n) * TOTAL_PIXELS * FLOAT_BYTES);
+        return view.slice().order(nativeOrder());
+    }
+
+    /**
+     * @return The images preprocessed and normalized one after another. Images which cannot be decoded are skipped.
+     */
+    private static ByteBuffer preprocess(File[] files) {
+        ByteBuffer samples = ByteBuffer.allocateDirect(files.length * TOTAL_PIXELS * FLOAT_BYTES).order(nativeOrder());
+        PreprocessingWorkspace workspace = new PreprocessingWorkspace();
+        int count = 0;
+        for (File file : files) {
+            try {
+                BufferedImage image = readImage(file);
+                int width = image.getWidth();
+                int height = image.getHeight();
+                workspace.convertToBlackAndWhiteCenteredImage(image.getRGB(0, 0, width, height, null, 0, width),
+                        width, height);
+                workspace.writeNormalized(samples, count++ * TOTAL_PIXELS * FLOAT_BYTES);
+            } catch (IOException | IllegalArgumentException ex) {
+                System.err.println("Skipping " + file.getName() + ": " + ex);
+            }
+        }
+        return slice(samples, 0, count);
+    }
+
+    private static ByteBuffer preprocess(GlyphDataset dataset) {
+        ByteBuffer samples = ByteBuffer.allocateDirect(dataset.size() * TOTAL_PIXELS * FLOAT_BYTES).order(nativeOrder());
+        BitPackedImage image = new BitPackedImage();
+        TensorLayout layout = new PreprocessingWorkspace().getLayout();
+        for (int i = 0; i < dataset.size(); i++) {
+            dataset.read(i, image);
+            image.writeNormalized(samples, i * TOTAL_PIXELS * FLOAT_BYTES, layout);
+        }
+        return samples;
+    }
+}
@@ -0,0 +1,336 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Classifies all images in a directory without Android, e.g. to validate a model on a build server.<p>
+ * Usage: {@code BatchClassifier <directory or dataset> --model <file.tflite> [--threads <n>] [--output <file.csv>]
+ * [--backend tflite|java]}<p>
+ * Images are classified in parallel, one interpreter per thread. With {@code --backend java} the model runs
+ * in {@link JavaNetwork}, so the TensorFlow Lite native library is not needed. It is the default
+ * when TensorFlow Lite is not in the build. The results are written to CSV
+ * (standard output by default) as they come, so their order is not the order of the files.
+ * The expected digit is taken from the file name (e8_0a_receipt_... is an eight) and at the end
+ * the accuracy and the throughput are reported on standard error.<p>
+ * Instead of a directory it can read a dataset built by {@link DatasetBuilder}, which is already preprocessed.
+ */
+public class BatchClassifier {
+    private static final Pattern LABELS = Pattern.compile("^e(\\d)_(\\d)a");
+    private static final Pattern EXPECTED = Pattern.compile("^e(\\d)_");
+    private static final String[] EXTENSIONS = {".png", ".jpg", ".jpeg", ".bmp"};
+
+    /** One line of the output. */
+    private static class Result {
+        final String file;
+        final char expected;
+        final Classification classification;
+        final String error;
+
+        Result(String file, char expected, Classification classification, String error) {
+            this.file = file;
+            this.expected = expected;
+            this.classification = classification;
+            this.error = error;
+        }
+    }
+
+    /** What the workers classify. Must be thread-safe. */
+    private interface Samples {
+        int size();
+
+        String getName(int index);
+
+        char getExpected(int index);
+
+        Classification classify(JvmClassifier classifier, int index) throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String input = null;
+        String model = null;
+        String outputFile = null;
+        String backend = InferenceBackend.isTfliteAvailable() ? InferenceBackend.TFLITE : InferenceBackend.JAVA;
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--model":
+                    model = args[++i];
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "--output":
+                    outputFile = args[++i];
+                    break;
+                case "--backend":
+                    backend = args[++i];
+                    break;
+                default:
+                    input = args[i];
+            }
+        }
+        if (input == null || model == null || threads < 1 || !backend.equals(InferenceBackend.TFLITE) && !backend.equals(InferenceBackend.JAVA)) {
+            System.err.println("Usage: BatchClassifier <directory or dataset> --model <file.tflite>"
+                    + " [--threads <n>] [--output <file.csv>] [--backend tflite|java]");
+            System.exit(2);
+        }
+        if (backend.equals(InferenceBackend.TFLITE) && !InferenceBackend.isTfliteAvailable()) {
+            System.err.println("TensorFlow Lite is not in the build. Put its jar in cli/libs or use --backend java.");
+            System.exit(2);
+        }
+
+        File file = new File(input);
+        Samples samples = file.isFile() ? datasetSamples(GlyphDataset.open(file)) : imageSamples(listImages(file));
+        Writer writer = outputFile == null ? new PrintWriter(System.out) : new FileWriter(outputFile);
+        try (PrintWriter csv = new PrintWriter(writer)) {
+            run(samples, JvmClassifier.loadModel(model), backend, threads, csv);
+        }
+    }
+
+    /**
+     * @return Image files in the directory sorted by name.
+     * @throws IOException If the directory cannot be listed.
+     */
+    static File[] listImages(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Cannot list " + directory);
+        }
+        List<File> images = new ArrayList<>();
+        for (File file : files) {
+            String name = file.getName().toLowerCase(Locale.ROOT);
+            for (String extension : EXTENSIONS) {
+                if (name.endsWith(extension)) {
+                    images.add(file);
+                    break;
+                }
+            }
+        }
+        File[] result = images.toArray(new File[0]);
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * @param fileName Name like e8_0a_receipt_2020-Jan-06_21-56-54-229_11.png.
+     * @return The expected digit or 0 if the name has no label.
+     */
+    static char expectedDigit(String fileName) {
+        Matcher matcher = EXPECTED.matcher(fileName);
+        return matcher.find() ? matcher.group(1).charAt(0) : 0;
+    }
+
+    /**
+     * @param fileName Name like e8_0a_receipt_2020-Jan-06_21-56-54-229_11.png.
+     * @return The actual (recognized) digit or 0 if the name has no label.
+     */
+    static char actualDigit(String fileName) {
+        Matcher matcher = LABELS.matcher(fileName);
+        return matcher.find() ? matcher.group(2).charAt(0) : 0;
+    }
+
+    /**
+     * @return The decoded image.
+     * @throws IOException If the file cannot be read or decoded.
+     */
+    static BufferedImage readImage(File file) throws IOException {
+        BufferedImage image = ImageIO.read(file);
+        if (image == null) {
+            throw new IOException("Unsupported image format");
+        }
+        return image;
+    }
+
+    private static Samples imageSamples(final File[] files) {
+        return new Samples() {
+            @Override
+            public int size() {
+                return files.length;
+            }
+
+            @Override
+            public String getName(int index) {
+                return files[index].getName();
+            }
+
+            @Override
+            public char getExpected(int index) {
+                return expectedDigit(files[index].getName());
+            }
+
+            @Override
+            public Classification classify(JvmClassifier classifier, int index) throws IOException {
+                BufferedImage image = readImage(files[index]);
+                int width = image.getWidth();
+                int height = image.getHeight();
+                int[] argb = image.getRGB(0, 0, width, height, null, 0, width);
+                return classifier.classify(argb, width, height);
+            }
+        };
+    }
+
+    private static Samples datasetSamples(final GlyphDataset dataset) {
+        return new Samples() {
+            @Override
+            public int size() {
+                return dataset.size();
+            }
+
+            @Override
+            public String getName(int index) {
+                return dataset.getSource(index);
+            }
+
+            @Override
+            public char getExpected(int index) {
+                return dataset.getExpected(index);
+            }
+
+            @Override
+            public Classification classify(JvmClassifier classifier, int index) {
+                return classifier.classify(dataset, index);
+            }
+        };
+    }
+
+    private static void run(final Samples samples, final MappedByteBuffer model, final String backend, int threads,
+                            PrintWriter csv) throws InterruptedException {
+        final int count = samples.size();
+        final BlockingQueue<Result> results = new ArrayBlockingQueue<>(1024);
+        final AtomicInteger next = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+
+        // Each worker takes the next sample until none are left, so slow images do not hold back the others.
+        // Every taken sample gets a result, even a failed one, because the main thread waits for all of them.
+        for (int t = 0; t < threads; t++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    JvmClassifier classifier;
+                    try {
+                        classifier = new JvmClassifier(InferenceBackend.create(backend, model));
+                    } catch (Throwable ex) {
+                        // The interpreter cannot be created. Report the samples this worker would have classified.
+                        reportRemaining(ex);
+                        return;
+                    }
+                    try {
+                        for (int i = next.getAndIncrement(); i < count; i = next.getAndIncrement()) {
+                            results.put(classify(classifier, samples, i));
+                        }
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        classifier.close();
+                    }
+                }
+
+                private void reportRemaining(Throwable error) {
+                    try {
+                        for (int i = next.getAndIncrement(); i < count; i = next.getAndIncrement()) {
+                            results.put(new Result(samples.getName(i), samples.getExpected(i), null, error.toString()));
+                        }
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+
+        int labeled = 0;
+        int correct = 0;
+        int errors = 0;
+        csv.println("file,expected,recognized,confidence,error");
+        for (int i = 0; i < count; i++) {
+            Result result = results.take();
+            if (result.classification == null) {
+                errors++;
+                csv.println(csvField(result.file) + "," + csvField(label(result.expected)) + ",,,"
+                        + csvField(result.error));
+                continue;
+            }
+            if (result.expected != 0) {
+                labeled++;
+                if (result.expected == result.classification.recognizedDigit) {
+                    correct++;
+                }
+            }
+            csv.println(csvField(result.file) + "," + csvField(label(result.expected)) + ","
+                    + result.classification.recognizedDigit + "," + String.format(Locale.ROOT, "%.4f", result.classification.confidence) + ",");
+        }
+        csv.flush();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.err.println(String.format(Locale.ROOT, "Classified %d images in %.2f s (%.1f images/s, %d threads, %s), %d errors",
+                count - errors, seconds, (count - errors) / seconds, threads, backend, errors));
+        if (labeled > 0) {
+            System.err.println(String.format(Locale.ROOT, "Accuracy: %.2f%% (%d of %d labeled images)",
+                    100.0 * correct / labeled, correct, labeled));
+        }
+    }
+
+    private static Result classify(JvmClassifier classifier, Samples samples, int index) {
+        String name = samples.getName(index);
+        char expected = samples.getExpected(index);
+        try {
+            return new Result(name, expected, samples.classify(classifier, index), null);
+        } catch (Throwable ex) {
+            // Any failure, even an unexpected one, is a result. Otherwise the main thread would wait for it forever.
+            return new Result(name, expected, null, ex.toString());
+        }
+    }
+
+    private static String label(char expected) {
+        return expected == 0 ? "" : String.valueOf(expected);
+    }
+
+    /**
+     * Quote a field as RFC 4180 requires: if it contains a comma, a quote or a line break,
+     * it is put in quotes and its quotes are doubled.
+     */
+    static String csvField(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == ',' || c == '"' || c == '\r' || c == '\n') {
+                return '"' + value.replace("\"", "\"\"") + '"';
+            }
+        }
+        return value;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static info.trekto.zeca.BatchClassifier.actualDigit;
+import static info.trekto.zeca.BatchClassifier.expectedDigit;
+import static info.trekto.zeca.BatchClassifier.listImages;
+import static info.trekto.zeca.BatchClassifier.readImage;
+
+/**
+ * Preprocesses all images in a directory once and writes them as a {@link GlyphDataset}.<p>
+ * Usage: {@code DatasetBuilder <directory> <output file> [--threads <n>]}<p>
+ * The labels are taken from the file names (e0_8a_receipt_... is expected 0, actual 8).
+ * Images are decoded and preprocessed in parallel and written in the order of the file names.
+ * Images which cannot be decoded are reported and skipped.
+ */
+public class DatasetBuilder {
+
+    public static void main(String[] args) throws Exception {
+        String directory = null;
+        String output = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--threads")) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (directory == null) {
+                directory = args[i];
+            } else {
+                output = args[i];
+            }
+        }
+        if (directory == null || output == null || threads < 1) {
+            System.err.println("Usage: DatasetBuilder <directory> <output file> [--threads <n>]");
+            System.exit(2);
+        }
+
+        long start = System.nanoTime();
+        File[] files = listImages(new File(directory));
+        BitPackedImage[] images = preprocess(files, threads);
+
+        GlyphDatasetWriter writer = new GlyphDatasetWriter();
+        for (int i = 0; i < files.length; i++) {
+            if (images[i] != null) {
+                String name = files[i].getName();
+                writer.add(images[i], expectedDigit(name), actualDigit(name), name);
+            }
+        }
+        writer.write(new File(output));
+
+        System.err.println(String.format(Locale.ROOT, "Wrote %d of %d images to %s in %.2f s",
+                writer.size(), files.length, output, (System.nanoTime() - start) / 1e9));
+    }
+
+    /**
+     * @return Preprocessed images in the order of the files, null for the ones which cannot be decoded.
+     */
+    private static BitPackedImage[] preprocess(final File[] files, int threads) throws InterruptedException {
+        final BitPackedImage[] images = new BitPackedImage[files.length];
+        final AtomicInteger next = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    PreprocessingWorkspace workspace = new PreprocessingWorkspace();
+                    for (int i = next.getAndIncrement(); i < files.length; i = next.getAndIncrement()) {
+                        try {
+                            BufferedImage image = readImage(files[i]);
+                            int width = image.getWidth();
+                            int height = image.getHeight();
+                            int[] argb = image.getRGB(0, 0, width, height, null, 0, width);
+                            BitPackedImage packed = new BitPackedImage();
+                            workspace.convertToBitPackedImage(argb, width, height, packed);
+                            images[i] = packed;
+                        } catch (IOException | IllegalArgumentException ex) {
+                            System.err.println("Skipping " + files[i].getName() + ": " + ex);
+                        }
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        return images;
+    }
+}
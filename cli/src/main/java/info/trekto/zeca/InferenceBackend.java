@@ -0,0 +1,90 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package info.trekto.zeca;
+
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+
+/**
+ * Runs a model on batches of preprocessed images in direct buffers.<p>
+ * {@link JavaBackend} is always built. {@code TfliteBackend} is built only when the TensorFlow Lite jar
+ * is in cli/libs, so it is created by name.
+ */
+interface InferenceBackend extends AutoCloseable {
+    String JAVA = "java";
+    String TFLITE = "tflite";
+
+    /**
+     * @return Format of the input images.
+     */
+    TensorFormat getInputFormat();
+
+    /**
+     * @return Format of the output values.
+     */
+    TensorFormat getOutputFormat();
+
+    /**
+     * @param input  n images one after another in the input format. Can be bigger.
+     * @param output Room for n values in the output format. Can be bigger.
+     * @param n      Number of images.
+     */
+    void run(ByteBuffer input, ByteBuffer output, int n);
+
+    @Override
+    void close();
+
+    /**
+     * @return True if the TensorFlow Lite backend is in the build.
+     */
+    static boolean isTfliteAvailable() {
+        try {
+            Class.forName("info.trekto.zeca.TfliteBackend");
+            return true;
+        } catch (ClassNotFoundException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * @param name  {@link #JAVA} or {@link #TFLITE}.
+     * @param model Model loaded with {@link JvmClassifier#loadModel(String)}.
+     * @return A new backend running on one thread.
+     * @throws IllegalArgumentException If the backend is unknown or not in the build or the model is not supported.
+     */
+    static InferenceBackend create(String name, ByteBuffer model) {
+        if (name.equals(JAVA)) {
+            return new JavaBackend(model);
+        }
+        if (!name.equals(TFLITE)) {
+            throw new IllegalArgumentException("Unknown backend: " + name);
+        }
+        if (!isTfliteAvailable()) {
+            throw new IllegalArgumentException("TensorFlow Lite is not in the build. Put its jar in cli/libs.");
+        }
+        try {
+            return (InferenceBackend) Class.forName("info.trekto.zeca.TfliteBackend")
+                    .getDeclaredConstructor(ByteBuffer.class).newInstance(model);
+        } catch (InvocationTargetException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new IllegalStateException(ex.getCause());
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package info.trekto.zeca;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Runs the model with {@link JavaNetwork}, so the TensorFlow Lite native library is not needed.
+ * Float input and output only.
+ */
+class JavaBackend implements InferenceBackend {
+    private final JavaNetwork network;
+
+    /**
+     * @throws IllegalArgumentException If the model cannot run in Java.
+     */
+    JavaBackend(ByteBuffer model) {
+        network = new JavaNetwork(model);
+    }
+
+    @Override
+    public TensorFormat getInputFormat() {
+        return TensorFormat.FLOAT;
+    }
+
+    @Override
+    public TensorFormat getOutputFormat() {
+        return TensorFormat.FLOAT;
+    }
+
+    @Override
+    public void run(ByteBuffer input, ByteBuffer output, int n) {
+        network.run(input, output, n);
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,111 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static info.trekto.zeca.Classification.fromModelOutput;
+import static java.nio.ByteOrder.nativeOrder;
+
+/**
+ * The JVM counterpart of the app Classifier: one backend with its own workspace and buffers.
+ * The model runs either in TensorFlow Lite or in {@link JavaNetwork}, which does not need the native library.
+ * Not thread-safe. Use one per thread. Many of them can share the same model buffer.
+ */
+class JvmClassifier implements AutoCloseable {
+    private final InferenceBackend backend;
+    private final PreprocessingWorkspace workspace = new PreprocessingWorkspace();
+    private final BitPackedImage packed = new BitPackedImage();
+
+    // Format of the model input and output. Float unless the model is quantized.
+    private final TensorFormat inputFormat;
+    private final TensorFormat outputFormat;
+
+    private final ByteBuffer input;
+    private final ByteBuffer output;
+
+    /**
+     * @param backend Runs the model. Closed with the classifier.
+     */
+    JvmClassifier(InferenceBackend backend) {
+        this.backend = backend;
+        inputFormat = backend.getInputFormat();
+        outputFormat = backend.getOutputFormat();
+        input = ByteBuffer.allocateDirect(inputFormat.getBytesPerImage()).order(nativeOrder());
+        output = ByteBuffer.allocateDirect(outputFormat.type.byteSize).order(nativeOrder());
+    }
+
+    /**
+     * @param path Path to a .tflite file.
+     * @return The model mapped in memory. It can be shared between classifiers.
+     * @throws IOException If the file cannot be read.
+     */
+    static MappedByteBuffer loadModel(String path) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path, "r")) {
+            FileChannel channel = file.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * Preprocess and classify an image.
+     *
+     * @param argb   Pixels of an image containing one digit in row-major order.
+     * @param width  Width of the image.
+     * @param height Height of the image.
+     * @return Recognized digit and confidence.
+     */
+    Classification classify(int[] argb, int width, int height) {
+        workspace.convertToBlackAndWhiteCenteredImage(argb, width, height);
+        inputFormat.writeImage(workspace, input, 0);
+        return run();
+    }
+
+    /**
+     * Classify an already preprocessed sample. It is unpacked straight into the input buffer.
+     *
+     * @param dataset Preprocessed samples.
+     * @param index   Sample index.
+     * @return Recognized digit and confidence.
+     */
+    Classification classify(GlyphDataset dataset, int index) {
+        dataset.read(index, packed);
+        inputFormat.writeImage(packed, workspace.getLayout(), input, 0);
+        return run();
+    }
+
+    private Classification run() {
+        backend.run(input, output, 1);
+        return fromModelOutput(readOutput());
+    }
+
+    /**
+     * @return The output of the model for the last classified image, dequantized if the model is quantized.
+     */
+    float readOutput() {
+        return outputFormat.readValue(output, 0);
+    }
+
+    @Override
+    public void close() {
+        backend.close();
+    }
+}
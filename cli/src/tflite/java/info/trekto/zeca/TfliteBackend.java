@@ -0,0 +1,83 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package info.trekto.zeca;
+
+import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.Tensor;
+
+import java.nio.ByteBuffer;
+
+import static info.trekto.zeca.PreprocessingWorkspace.TOTAL_PIXELS;
+import static java.nio.ByteOrder.nativeOrder;
+
+/**
+ * Runs the model with TensorFlow Lite on one thread. Built only when its jar is in cli/libs.
+ * Created by {@link InferenceBackend#create(String, ByteBuffer)}.
+ */
+class TfliteBackend implements InferenceBackend {
+    private final Interpreter interpreter;
+    private final TensorFormat inputFormat;
+    private final TensorFormat outputFormat;
+
+    // Current size of the first dimension of the input tensor
+    private int batchSize = 1;
+
+    TfliteBackend(ByteBuffer model) {
+        interpreter = new Interpreter(model, new Interpreter.Options().setNumThreads(1));
+        inputFormat = readFormat(interpreter.getInputTensor(0));
+        outputFormat = readFormat(interpreter.getOutputTensor(0));
+    }
+
+    private static TensorFormat readFormat(Tensor tensor) {
+        Tensor.QuantizationParams params = tensor.quantizationParams();
+        return TensorFormat.of(tensor.dataType().name(), params.getScale(), params.getZeroPoint());
+    }
+
+    @Override
+    public TensorFormat getInputFormat() {
+        return inputFormat;
+    }
+
+    @Override
+    public TensorFormat getOutputFormat() {
+        return outputFormat;
+    }
+
+    @Override
+    public void run(ByteBuffer input, ByteBuffer output, int n) {
+        if (batchSize != n) {
+            interpreter.resizeInput(0, new int[]{n, TOTAL_PIXELS});
+            batchSize = n;
+        }
+        interpreter.run(view(input, n * inputFormat.getBytesPerImage()), view(output, n * outputFormat.type.byteSize));
+    }
+
+    /**
+     * The interpreter accepts only buffers with exactly the size of the tensor.
+     *
+     * @return View over the beginning of the buffer sharing its memory.
+     */
+    private static ByteBuffer view(ByteBuffer buffer, int bytes) {
+        ByteBuffer view = buffer.duplicate();
+        view.clear().limit(bytes);
+        return view.slice().order(nativeOrder());
+    }
+
+    @Override
+    public void close() {
+        interpreter.close();
+    }
+}
@@ -0,0 +1,241 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static info.trekto.zeca.PreprocessingWorkspace.BLACK;
+import static info.trekto.zeca.PreprocessingWorkspace.FLOAT_BYTES;
+import static info.trekto.zeca.PreprocessingWorkspace.IMAGE_H;
+import static info.trekto.zeca.PreprocessingWorkspace.IMAGE_W;
+import static info.trekto.zeca.PreprocessingWorkspace.TOTAL_PIXELS;
+import static info.trekto.zeca.PreprocessingWorkspace.WHITE;
+import static info.trekto.zeca.PreprocessingWorkspace.boundingBoxCenterY;
+import static info.trekto.zeca.PreprocessingWorkspace.centerOfMassX;
+import static info.trekto.zeca.PreprocessingWorkspace.quantize;
+
+/**
+ * Black and white 32x32 image packed in 1024 bits (16 longs, 128 bytes) instead of 1024 ints or floats.
+ * Bit y * 32 + x is set if the pixel (x, y) is black, so every long holds two rows.<p>
+ * Thresholding, framing, centering and moving work on whole rows with bit operations.
+ * Can be used as a key in hash maps.
+ */
+public class BitPackedImage {
+    public static final int WORDS = TOTAL_PIXELS / Long.SIZE;
+
+    /**
+     * Mask i selects the columns x with bit i of x set. Used to sum x coordinates with bitCount.
+     */
+    private static final int[] COLUMN_BIT_MASKS = {0xAAAAAAAA, 0xCCCCCCCC, 0xF0F0F0F0, 0xFF00FF00, 0xFFFF0000};
+
+    final long[] words = new long[WORDS];
+
+    /**
+     * @param pixels Black and white image (values 0 or 255) in row-major order.
+     */
+    public void pack(int[] pixels) {
+        for (int word = 0; word < WORDS; word++) {
+            long bits = 0;
+            int offset = word * Long.SIZE;
+            for (int bit = 0; bit < Long.SIZE; bit++) {
+                if (pixels[offset + bit] == BLACK) {
+                    bits |= 1L << bit;
+                }
+            }
+            words[word] = bits;
+        }
+    }
+
+    /**
+     * Threshold a grey image and put it in a white frame in one step.
+     * Pixels darker than threshold become black, all others and the frame - white.
+     *
+     * @param grey      Grey values in row-major order.
+     * @param width     Width of the grey image. At most 32.
+     * @param height    Height of the grey image. At most 32.
+     * @param threshold Black and white threshold.
+     * @param left      X of the grey image in the frame.
+     * @param top       Y of the grey image in the frame.
+     */
+    public void threshold(int[] grey, int width, int height, int threshold, int left, int top) {
+        Arrays.fill(words, 0);
+        for (int y = 0; y < height; y++) {
+            int bits = 0;
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                if (grey[offset + x] < threshold) {
+                    bits |= 1 << x;
+                }
+            }
+            setRow(top + y, bits << left);
+        }
+    }
+
+    /**
+     * Center image based on:
+     * - its center of mass for x coordinate;
+     * - bounding box (frame) for y coordinate.<p>
+     * Gives exactly the same result as the centering of {@link PreprocessingWorkspace}.
+     */
+    public void center() {
+        int blackPixelsCount = 0;
+        int sumX = 0;
+        int top = IMAGE_H;
+        int bottom = 0;
+
+        for (int y = 0; y < IMAGE_H; y++) {
+            int row = row(y);
+            if (row != 0) {
+                if (y < top) top = y;
+                bottom = y;
+                blackPixelsCount += Integer.bitCount(row);
+                for (int bit = 0; bit < COLUMN_BIT_MASKS.length; bit++) {
+                    sumX += Integer.bitCount(row & COLUMN_BIT_MASKS[bit]) << bit;
+                }
+            }
+        }
+
+        // A pixel counts only if darker than the mean. If all pixels are black, none of them is.
+        if (blackPixelsCount == TOTAL_PIXELS) {
+            blackPixelsCount = 0;
+            sumX = 0;
+            top = IMAGE_H;
+            bottom = 0;
+        }
+
+        move(IMAGE_W / 2 - centerOfMassX(sumX, blackPixelsCount), IMAGE_H / 2 - boundingBoxCenterY(top, bottom));
+    }
+
+    /**
+     * Move image with diffX and diffY. Pixels moved out are lost, the new ones are white.
+     *
+     * @param diffX X difference.
+     * @param diffY Y difference.
+     */
+    public void move(int diffX, int diffY) {
+        // Iterate so that every row is read before it is overwritten
+        for (int i = 0; i < IMAGE_H; i++) {
+            int y = diffY > 0 ? IMAGE_H - 1 - i : i;
+            int oldY = y - diffY;
+            int row = oldY < 0 || oldY >= IMAGE_H ? 0 : row(oldY);
+            setRow(y, shift(row, diffX));
+        }
+    }
+
+    private static int shift(int row, int diffX) {
+        if (diffX >= IMAGE_W || diffX <= -IMAGE_W) {
+            return 0;
+        }
+        return diffX >= 0 ? row << diffX : row >>> -diffX;
+    }
+
+    /**
+     * @return Row y with bit x set if the pixel (x, y) is black.
+     */
+    int row(int y) {
+        return (int) (words[y >> 1] >>> ((y & 1) * IMAGE_W));
+    }
+
+    private void setRow(int y, int bits) {
+        int shift = (y & 1) * IMAGE_W;
+        long mask = 0xFFFFFFFFL << shift;
+        words[y >> 1] = (words[y >> 1] & ~mask) | ((bits & 0xFFFFFFFFL) << shift);
+    }
+
+    public boolean isBlack(int x, int y) {
+        return (row(y) >>> x & 1) != 0;
+    }
+
+    public int countBlack() {
+        int count = 0;
+        for (long word : words) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * @param pixels Receives the image (values 0 or 255) in row-major order.
+     */
+    public void unpack(int[] pixels) {
+        for (int y = 0; y < IMAGE_H; y++) {
+            int row = row(y);
+            for (int x = 0; x < IMAGE_W; x++) {
+                pixels[y * IMAGE_W + x] = (row >>> x & 1) != 0 ? BLACK : WHITE;
+            }
+        }
+    }
+
+    /**
+     * Write the image as normalized floats (0 for black, 1 for white) directly into a model input buffer.
+     *
+     * @param input      Buffer with native byte order, normally a direct one.
+     * @param byteOffset Where the image starts in the buffer.
+     * @param layout     Order of the pixels.
+     */
+    public void writeNormalized(ByteBuffer input, int byteOffset, TensorLayout layout) {
+        float black = BLACK / 255f;
+        float white = WHITE / 255f;
+        for (int y = 0; y < IMAGE_H; y++) {
+            int row = row(y);
+            for (int x = 0; x < IMAGE_W; x++) {
+                int index = layout.index(x, y, IMAGE_W, IMAGE_H);
+                input.putFloat(byteOffset + index * FLOAT_BYTES, (row >>> x & 1) != 0 ? black : white);
+            }
+        }
+    }
+
+    /**
+     * Write the image directly into the input buffer of a quantized (uint8 or int8) model.
+     *
+     * @param input      Buffer for the model input.
+     * @param byteOffset Where the image starts in the buffer.
+     * @param scale      Quantization scale of the input tensor.
+     * @param zeroPoint  Quantization zero point of the input tensor.
+     * @param signed     True for int8, false for uint8.
+     * @param layout     Order of the pixels.
+     */
+    public void writeQuantized(ByteBuffer input, int byteOffset, float scale, int zeroPoint, boolean signed,
+                               TensorLayout layout) {
+        byte black = quantize(BLACK / 255f, scale, zeroPoint, signed);
+        byte white = quantize(WHITE / 255f, scale, zeroPoint, signed);
+        for (int y = 0; y < IMAGE_H; y++) {
+            int row = row(y);
+            for (int x = 0; x < IMAGE_W; x++) {
+                int index = layout.index(x, y, IMAGE_W, IMAGE_H);
+                input.put(byteOffset + index, (row >>> x & 1) != 0 ? black : white);
+            }
+        }
+    }
+
+    public BitPackedImage copy() {
+        BitPackedImage copy = new BitPackedImage();
+        System.arraycopy(words, 0, copy.words, 0, WORDS);
+        return copy;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || (o instanceof BitPackedImage && Arrays.equals(words, ((BitPackedImage) o).words));
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(words);
+    }
+}
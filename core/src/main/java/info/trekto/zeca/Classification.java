@@ -0,0 +1,53 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+public class Classification {
+    public final char recognizedDigit;
+    public final float confidence;
+
+    public Classification(char recognizedDigit, float confidence) {
+        this.recognizedDigit = recognizedDigit;
+        this.confidence = confidence;
+    }
+
+    /**
+     * Our classifier is binary. We have only two classes.
+     * Thus the output is just a single number - the probability the digit to be eight.
+     * If the probability is above 0.5 we assume the digit is eight. Otherwise - zero.
+     *
+     * @param result The output of the model.
+     * @return Recognized digit and confidence.
+     */
+    public static Classification fromModelOutput(float result) {
+        char digit = result > 0.5f ? '8' : '0';
+        return new Classification(digit, calculateConfidence(result));
+    }
+
+    /**
+     * Calculates how confident we are that the classified digit is correct.
+     * @param result The result of the binary classification.
+     * @return Confidence between 0 and 1 inclusive.
+     */
+    private static float calculateConfidence(float result) {
+        if (result > 0.5f) {
+            return 1-2*(1-result);
+        } else {
+            return 1-2*(result);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+/**
+ * Bounding box of a glyph found in a line by {@link LineSegmenter}, in pixels of the line.
+ */
+public class Glyph {
+    public final int left;
+    public final int top;
+    public final int width;
+    public final int height;
+
+    public Glyph(int left, int top, int width, int height) {
+        this.left = left;
+        this.top = top;
+        this.width = width;
+        this.height = height;
+    }
+
+    @Override
+    public String toString() {
+        return "Glyph{" + left + ", " + top + ", " + width + "x" + height + "}";
+    }
+}
@@ -0,0 +1,34 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+/**
+ * Classification of one glyph of a line with its position.
+ */
+public class GlyphClassification {
+    public final Glyph glyph;
+
+    /**
+     * Null if the glyph cannot be classified, e.g. a dash too long and thin to scale to 32x32.
+     */
+    public final Classification classification;
+
+    public GlyphClassification(Glyph glyph, Classification classification) {
+        this.glyph = glyph;
+        this.classification = classification;
+    }
+}
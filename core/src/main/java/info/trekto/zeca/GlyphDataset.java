@@ -0,0 +1,140 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Labeled preprocessed glyphs in a single memory-mapped file, written by {@link GlyphDatasetWriter}.<p>
+ * Samples are read straight from the mapped file: no decoding, no preprocessing and no allocation
+ * except for the source names. The operating system loads the pages when they are touched,
+ * so opening is instant regardless of the size.<p>
+ * Layout (big-endian):
+ * <pre>
+ * header   magic "ZDS1", sample count, offsets of the images, labels, name offsets and names (6 ints)
+ * images   count * 16 longs, bit-packed as in {@link BitPackedImage}, 8-byte aligned
+ * labels   count * 2 bytes: expected and actual digit, 0 if unknown
+ * offsets  (count + 1) ints: start of each name in the names section, the last one is its end
+ * names    UTF-8 source names (file names) one after another
+ * </pre>
+ * Reading is thread-safe, every read uses absolute positions.
+ */
+public class GlyphDataset {
+    static final int MAGIC = 0x5A445331; // "ZDS1"
+    static final int HEADER_BYTES = 6 * 4;
+    static final int IMAGE_BYTES = BitPackedImage.WORDS * Long.SIZE / Byte.SIZE;
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final MappedByteBuffer buffer;
+    private final LongBuffer images;
+    private final int count;
+    private final int labelsOffset;
+    private final int nameOffsetsOffset;
+    private final int namesOffset;
+
+    private GlyphDataset(MappedByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a glyph dataset");
+        }
+        count = buffer.getInt(4);
+        int imagesOffset = buffer.getInt(8);
+        labelsOffset = buffer.getInt(12);
+        nameOffsetsOffset = buffer.getInt(16);
+        namesOffset = buffer.getInt(20);
+        if (count < 0 || imagesOffset % 8 != 0
+                || imagesOffset + (long) count * IMAGE_BYTES > labelsOffset
+                || labelsOffset + count * 2L > nameOffsetsOffset
+                || nameOffsetsOffset + (count + 1) * 4L > namesOffset
+                || namesOffset > buffer.capacity()) {
+            throw new IOException("Corrupted glyph dataset");
+        }
+
+        buffer.position(imagesOffset);
+        buffer.limit(imagesOffset + count * IMAGE_BYTES);
+        images = buffer.slice().order(ByteOrder.BIG_ENDIAN).asLongBuffer();
+        buffer.clear();
+    }
+
+    /**
+     * @param file Written by {@link GlyphDatasetWriter}.
+     * @return The dataset mapped in memory. It stays valid after the file is closed.
+     * @throws IOException If the file cannot be read or is not a dataset.
+     */
+    public static GlyphDataset open(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            return new GlyphDataset(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * @return Number of samples.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @param index Sample index.
+     * @param image Receives the black and white centered image of the sample.
+     */
+    public void read(int index, BitPackedImage image) {
+        int offset = index * BitPackedImage.WORDS;
+        for (int i = 0; i < BitPackedImage.WORDS; i++) {
+            image.words[i] = images.get(offset + i);
+        }
+    }
+
+    /**
+     * @return The expected digit or 0 if unknown.
+     */
+    public char getExpected(int index) {
+        return (char) buffer.get(labelsOffset + index * 2);
+    }
+
+    /**
+     * @return The actual digit or 0 if unknown.
+     */
+    public char getActual(int index) {
+        return (char) buffer.get(labelsOffset + index * 2 + 1);
+    }
+
+    /**
+     * @return Name of the source of the sample, e.g. the file name of the original image.
+     */
+    public String getSource(int index) {
+        int start = buffer.getInt(nameOffsetsOffset + index * 4);
+        int end = buffer.getInt(nameOffsetsOffset + (index + 1) * 4);
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(namesOffset + start + i);
+        }
+        return new String(bytes, UTF_8);
+    }
+}
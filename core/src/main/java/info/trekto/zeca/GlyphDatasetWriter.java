@@ -0,0 +1,122 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import static info.trekto.zeca.GlyphDataset.HEADER_BYTES;
+import static info.trekto.zeca.GlyphDataset.IMAGE_BYTES;
+import static info.trekto.zeca.GlyphDataset.MAGIC;
+import static info.trekto.zeca.GlyphDataset.UTF_8;
+
+/**
+ * Collects labeled samples in memory (about 130 bytes plus the name per sample)
+ * and writes them in the format read by {@link GlyphDataset}.
+ */
+public class GlyphDatasetWriter {
+    private ByteBuffer images = ByteBuffer.allocate(1024 * IMAGE_BYTES);
+    private final ByteArrayOutputStream labels = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream names = new ByteArrayOutputStream();
+    private int[] nameOffsets = new int[1024 + 1];
+    private int count;
+
+    /**
+     * @param image    Black and white centered image.
+     * @param expected The correct digit or 0 if unknown.
+     * @param actual   The recognized digit or 0 if unknown.
+     * @param source   Name of the source, e.g. the file name of the original image.
+     */
+    public void add(BitPackedImage image, char expected, char actual, String source) {
+        if (images.remaining() < IMAGE_BYTES) {
+            ByteBuffer bigger = ByteBuffer.allocate(images.capacity() * 2);
+            images.flip();
+            bigger.put(images);
+            images = bigger;
+        }
+        for (long word : image.words) {
+            images.putLong(word);
+        }
+        labels.write(expected);
+        labels.write(actual);
+
+        byte[] name = source.getBytes(UTF_8);
+        names.write(name, 0, name.length);
+        if (count + 2 > nameOffsets.length) {
+            int[] bigger = new int[nameOffsets.length * 2];
+            System.arraycopy(nameOffsets, 0, bigger, 0, nameOffsets.length);
+            nameOffsets = bigger;
+        }
+        nameOffsets[++count] = names.size();
+    }
+
+    /**
+     * @return Number of samples added.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @param file Created or overwritten.
+     * @throws IOException If the file cannot be written.
+     */
+    public void write(File file) throws IOException {
+        int imagesOffset = (HEADER_BYTES + 7) / 8 * 8;
+        int labelsOffset = imagesOffset + count * IMAGE_BYTES;
+        int nameOffsetsOffset = labelsOffset + count * 2;
+        int namesOffset = nameOffsetsOffset + (count + 1) * 4;
+
+        ByteBuffer header = ByteBuffer.allocate(imagesOffset).order(ByteOrder.BIG_ENDIAN);
+        header.putInt(MAGIC).putInt(count).putInt(imagesOffset).putInt(labelsOffset)
+                .putInt(nameOffsetsOffset).putInt(namesOffset);
+        header.clear();
+
+        ByteBuffer offsets = ByteBuffer.allocate((count + 1) * 4).order(ByteOrder.BIG_ENDIAN);
+        for (int i = 0; i <= count; i++) {
+            offsets.putInt(nameOffsets[i]);
+        }
+        offsets.flip();
+
+        ByteBuffer imageBytes = images.duplicate();
+        imageBytes.flip();
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(0);
+            FileChannel channel = randomAccessFile.getChannel();
+            writeFully(channel, header);
+            writeFully(channel, imageBytes);
+            writeFully(channel, ByteBuffer.wrap(labels.toByteArray()));
+            writeFully(channel, offsets);
+            writeFully(channel, ByteBuffer.wrap(names.toByteArray()));
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
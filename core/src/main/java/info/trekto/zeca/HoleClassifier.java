@@ -0,0 +1,334 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static info.trekto.zeca.PreprocessingWorkspace.IMAGE_H;
+
+/**
+ * Cheap pre-classifier which decides only the obvious cases, so the model runs only for the ambiguous ones.<p>
+ * It counts the holes (white areas enclosed by black ones) of the black and white centered image.
+ * Both eight and slashed zero have two holes, but an eight has them one above the other,
+ * while the slash splits the zero into two holes overlapping in height or the lower one shifted to the right.
+ * Images with another number of holes (broken or cropped digits) are left to the model.
+ * Small pockets at the ends of the slash are ignored.<p>
+ * Holes are found with flood fill over whole rows with bit operations in per thread rows, so it is thread-safe
+ * and much cheaper than the model. It keeps statistics of how often it decides, how often the model
+ * is actually skipped and how often it agrees with the model (when the caller reports them).
+ */
+public class HoleClassifier {
+    public static final int DEFAULT_MIN_HOLE_AREA = 4;
+    public static final float DEFAULT_MIN_CONFIDENCE = 0.9f;
+
+    private static final int ALL_COLUMNS = 0xFFFFFFFF;
+    private static final int BORDER_COLUMNS = 0x80000001;
+
+    // Holes smaller than this part of the second biggest one are pockets at the ends of the slash
+    private static final float POCKET_FRACTION = 0.25f;
+
+    // Indexes in the array filled by measure()
+    private static final int LEFT = 0;
+    private static final int TOP = 1;
+    private static final int RIGHT = 2;
+    private static final int BOTTOM = 3;
+    private static final int AREA = 4;
+    private static final int SUM_X = 5;
+    private static final int BOX_SIZE = 6;
+
+    private final int minHoleArea;
+    private final float minConfidence;
+
+    /**
+     * Arrays reused by every image classified on a thread.
+     */
+    private static class Scratch {
+        final int[] remaining = new int[IMAGE_H];
+        final int[] hole = new int[IMAGE_H];
+        // The hole being measured and the two biggest ones so far, swapped instead of copied
+        final int[][] boxes = new int[3][BOX_SIZE];
+    }
+
+    // The classifier is shared by the threads of the interpreter pool, so the scratch is per thread
+    private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    private final AtomicLong classified = new AtomicLong();
+    private final AtomicLong decided = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong compared = new AtomicLong();
+    private final AtomicLong agreed = new AtomicLong();
+
+    public HoleClassifier() {
+        this(DEFAULT_MIN_HOLE_AREA, DEFAULT_MIN_CONFIDENCE);
+    }
+
+    /**
+     * @param minHoleArea   Smaller white areas are noise, not holes.
+     * @param minConfidence Below it the image is left to the model. Between 0 and 1 inclusive.
+     */
+    public HoleClassifier(int minHoleArea, float minConfidence) {
+        if (minConfidence < 0 || minConfidence > 1) {
+            throw new IllegalArgumentException("Confidence must be between 0 and 1: " + minConfidence);
+        }
+        this.minHoleArea = minHoleArea;
+        this.minConfidence = minConfidence;
+    }
+
+    /**
+     * @param image Black and white centered image.
+     * @return The classification if it is at least as confident as required, otherwise null.
+     */
+    public Classification classify(BitPackedImage image) {
+        classified.incrementAndGet();
+        Classification classification = classifyHoles(image);
+        if (classification == null || classification.confidence < minConfidence) {
+            return null;
+        }
+        decided.incrementAndGet();
+        return classification;
+    }
+
+    /**
+     * Report that the result of {@link #classify(BitPackedImage)} was used and the model did not run.
+     */
+    public void recordSkipped() {
+        skipped.incrementAndGet();
+    }
+
+    /**
+     * Report the result of the model for an image decided by {@link #classify(BitPackedImage)},
+     * e.g. when both are run to validate the thresholds.
+     *
+     * @param fast  The result of this classifier.
+     * @param model The result of the model.
+     */
+    public void recordAgreement(Classification fast, Classification model) {
+        compared.incrementAndGet();
+        if (fast.recognizedDigit == model.recognizedDigit) {
+            agreed.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return Part of the images confident enough to skip the model, whether it was skipped or not.
+     * 0 if nothing is classified yet.
+     */
+    public float getDecidedRate() {
+        long total = classified.get();
+        return total == 0 ? 0 : decided.get() / (float) total;
+    }
+
+    /**
+     * @return Part of the images for which the model was skipped (see {@link #recordSkipped()}).
+     * 0 if nothing is classified yet.
+     */
+    public float getFastPathRate() {
+        long total = classified.get();
+        return total == 0 ? 0 : skipped.get() / (float) total;
+    }
+
+    /**
+     * @return Part of the compared images for which the model gave the same digit. 1 if nothing is compared yet.
+     */
+    public float getAgreementRate() {
+        long total = compared.get();
+        return total == 0 ? 1 : agreed.get() / (float) total;
+    }
+
+    public void resetStatistics() {
+        classified.set(0);
+        decided.set(0);
+        skipped.set(0);
+        compared.set(0);
+        agreed.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "HoleClassifier{decided: " + decided.get() + "/" + classified.get()
+                + ", fast path: " + skipped.get() + "/" + classified.get()
+                + ", agreement: " + agreed.get() + "/" + compared.get() + "}";
+    }
+
+    /**
+     * @return Digit and confidence based on the two biggest holes or null if there are not exactly two holes.
+     */
+    private Classification classifyHoles(BitPackedImage image) {
+        Scratch rows = scratch.get();
+        int[] remaining = rows.remaining;
+        int[] hole = rows.hole;
+
+        // White pixels reachable from the border are the background, not holes
+        for (int y = 0; y < IMAGE_H; y++) {
+            remaining[y] = ~image.row(y);
+            hole[y] = (y == 0 || y == IMAGE_H - 1 ? ALL_COLUMNS : BORDER_COLUMNS) & remaining[y];
+        }
+        fill(hole, remaining);
+        for (int y = 0; y < IMAGE_H; y++) {
+            remaining[y] &= ~hole[y];
+        }
+
+        // An area of 0 means no hole yet, measured holes have at least one pixel
+        int[] box = rows.boxes[0];
+        int[] first = rows.boxes[1];
+        int[] second = rows.boxes[2];
+        first[AREA] = 0;
+        second[AREA] = 0;
+        int biggestPocket = 0;
+        for (int seedY = 0; seedY < IMAGE_H; seedY++) {
+            while (remaining[seedY] != 0) {
+                for (int y = 0; y < IMAGE_H; y++) {
+                    hole[y] = 0;
+                }
+                hole[seedY] = Integer.lowestOneBit(remaining[seedY]);
+                fill(hole, remaining);
+                for (int y = 0; y < IMAGE_H; y++) {
+                    remaining[y] &= ~hole[y];
+                }
+
+                // Keep the two biggest holes
+                measure(hole, box);
+                if (box[AREA] < minHoleArea) {
+                    continue;
+                }
+                int[] free;
+                if (box[AREA] > first[AREA]) {
+                    biggestPocket = Math.max(biggestPocket, second[AREA]);
+                    free = second;
+                    second = first;
+                    first = box;
+                } else if (box[AREA] > second[AREA]) {
+                    biggestPocket = Math.max(biggestPocket, second[AREA]);
+                    free = second;
+                    second = box;
+                } else {
+                    biggestPocket = Math.max(biggestPocket, box[AREA]);
+                    free = box;
+                }
+                box = free;
+            }
+        }
+        if (second[AREA] == 0 || biggestPocket >= POCKET_FRACTION * second[AREA]) {
+            return null;
+        }
+
+        float verticalOverlap = overlap(first[TOP], first[BOTTOM], second[TOP], second[BOTTOM]);
+        float horizontalOverlap = overlap(first[LEFT], first[RIGHT], second[LEFT], second[RIGHT]);
+        // The slash of a zero goes up to the right, so the lower hole is shifted to the right of the upper one.
+        // Italic eights are shifted the other way. The shift is relative to the width of the holes,
+        // half of the width is surely a slash.
+        int[] upper = first[TOP] + first[BOTTOM] <= second[TOP] + second[BOTTOM] ? first : second;
+        int[] lower = upper == first ? second : first;
+        float meanWidth = (first[RIGHT] - first[LEFT] + second[RIGHT] - second[LEFT] + 2) / 2f;
+        float shift = lower[SUM_X] / (float) lower[AREA] - upper[SUM_X] / (float) upper[AREA];
+        float skew = Math.max(0, Math.min(1, 2 * shift / meanWidth));
+
+        float eight = horizontalOverlap * (1 - verticalOverlap) * (1 - skew);
+        float zero = Math.max(verticalOverlap, skew);
+        return eight > zero ? new Classification('8', eight) : new Classification('0', zero);
+    }
+
+    /**
+     * Grow the region within the mask (4-connected) until it stops changing.
+     *
+     * @param region Rows of the region. Bit x of row y is the pixel (x, y).
+     * @param mask   Rows of the pixels the region may grow into.
+     */
+    private static void fill(int[] region, int[] mask) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            // Down then up, so a region spreads through the whole image in one iteration if it can
+            for (int y = 0; y < IMAGE_H; y++) {
+                changed |= grow(region, mask, y);
+            }
+            for (int y = IMAGE_H - 1; y >= 0; y--) {
+                changed |= grow(region, mask, y);
+            }
+        }
+    }
+
+    private static boolean grow(int[] region, int[] mask, int y) {
+        int row = region[y];
+        // Only the pixels directly above and below, spreading the rows before masking would connect diagonals
+        int vertical = 0;
+        if (y > 0) {
+            vertical |= region[y - 1];
+        }
+        if (y < IMAGE_H - 1) {
+            vertical |= region[y + 1];
+        }
+        int grown = row | (vertical & mask[y]);
+        // Spread along the row as far as the mask allows
+        int previous;
+        do {
+            previous = grown;
+            grown |= ((grown << 1) | (grown >>> 1)) & mask[y];
+        } while (grown != previous);
+        region[y] = grown;
+        return grown != row;
+    }
+
+    /**
+     * @param box Receives {left, top, right, bottom, area, sum of x} of the region. See the index constants.
+     */
+    private static void measure(int[] region, int[] box) {
+        int left = Integer.SIZE;
+        int top = -1;
+        int right = -1;
+        int bottom = -1;
+        int area = 0;
+        int sumX = 0;
+        for (int y = 0; y < IMAGE_H; y++) {
+            int row = region[y];
+            if (row != 0) {
+                if (top < 0) {
+                    top = y;
+                }
+                bottom = y;
+                left = Math.min(left, Integer.numberOfTrailingZeros(row));
+                right = Math.max(right, Integer.SIZE - 1 - Integer.numberOfLeadingZeros(row));
+                area += Integer.bitCount(row);
+                for (int bits = row; bits != 0; bits &= bits - 1) {
+                    sumX += Integer.numberOfTrailingZeros(bits);
+                }
+            }
+        }
+        box[LEFT] = left;
+        box[TOP] = top;
+        box[RIGHT] = right;
+        box[BOTTOM] = bottom;
+        box[AREA] = area;
+        box[SUM_X] = sumX;
+    }
+
+    /**
+     * @return The common part of the two ranges as a part of the shorter one. 0 if they do not overlap.
+     */
+    private static float overlap(int start1, int end1, int start2, int end2) {
+        int common = Math.min(end1, end2) - Math.max(start1, start2) + 1;
+        if (common <= 0) {
+            return 0;
+        }
+        return common / (float) Math.min(end1 - start1 + 1, end2 - start2 + 1);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Records how long each {@link PipelineStage} takes and how many bytes it allocates.<p>
+ * Usage:
+ * <pre>
+ * long start = instrumentation.begin(PipelineStage.DECODE);
+ * Bitmap bitmap = null;
+ * try {
+ *     bitmap = decode();
+ * } finally {
+ *     instrumentation.end(PipelineStage.DECODE, start, bitmap == null ? 0 : bitmap.getByteCount());
+ * }
+ * </pre>
+ * end() in a finally block keeps the trace sections balanced when a stage fails. Failed stages are recorded too.
+ * When disabled, begin() and end() only read a volatile flag.
+ * Thread-safe and lock-free.
+ */
+public class Instrumentation {
+    /**
+     * Receives the stages as trace sections (e.g. android.os.Trace).
+     * Sections are begun and ended on the same thread.
+     */
+    public interface Tracer {
+        void beginSection(String name);
+
+        void endSection();
+    }
+
+    /**
+     * Returned by {@link #begin} when disabled. Not a possible System.nanoTime() value in practice, unlike 0.
+     */
+    public static final long NOT_STARTED = Long.MIN_VALUE;
+
+    private final Map<PipelineStage, LatencyHistogram> histograms = new EnumMap<>(PipelineStage.class);
+    private volatile boolean enabled;
+    private volatile Tracer tracer;
+
+    public Instrumentation() {
+        for (PipelineStage stage : PipelineStage.values()) {
+            histograms.put(stage, new LatencyHistogram());
+        }
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param tracer Tracer receiving the stages while enabled or null for no tracing.
+     */
+    public void setTracer(Tracer tracer) {
+        this.tracer = tracer;
+    }
+
+    /**
+     * @param stage The stage which starts.
+     * @return Start time to be passed to {@link #end} or {@link #NOT_STARTED} if disabled.
+     */
+    public long begin(PipelineStage stage) {
+        if (!enabled) {
+            return NOT_STARTED;
+        }
+        Tracer currentTracer = tracer;
+        if (currentTracer != null) {
+            currentTracer.beginSection(stage.name());
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * @param stage          The stage which ends.
+     * @param start          The value returned by {@link #begin}.
+     * @param bytesAllocated Bytes allocated by the stage, e.g. for bitmaps.
+     */
+    public void end(PipelineStage stage, long start, long bytesAllocated) {
+        if (start == NOT_STARTED) {
+            return;
+        }
+        histograms.get(stage).record(System.nanoTime() - start, bytesAllocated);
+        Tracer currentTracer = tracer;
+        if (currentTracer != null) {
+            currentTracer.endSection();
+        }
+    }
+
+    /**
+     * @return Current values of all stages.
+     */
+    public InstrumentationSnapshot snapshot() {
+        return new InstrumentationSnapshot(histograms);
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Immutable copy of the values recorded by {@link Instrumentation}.
+ */
+public class InstrumentationSnapshot {
+    public static class StageSnapshot {
+        public final long count;
+        public final long totalNanos;
+        public final long maxNanos;
+        public final long p50Nanos;
+        public final long p99Nanos;
+        public final long bytes;
+
+        StageSnapshot(LatencyHistogram histogram) {
+            count = histogram.getCount();
+            totalNanos = histogram.getTotalNanos();
+            maxNanos = histogram.getMaxNanos();
+            p50Nanos = histogram.percentile(50);
+            p99Nanos = histogram.percentile(99);
+            bytes = histogram.getBytes();
+        }
+
+        public long getMeanNanos() {
+            return count == 0 ? 0 : totalNanos / count;
+        }
+
+        @Override
+        public String toString() {
+            return "count: " + count
+                    + ", mean: " + getMeanNanos() / 1000 + " us"
+                    + ", p50: " + p50Nanos / 1000 + " us"
+                    + ", p99: " + p99Nanos / 1000 + " us"
+                    + ", max: " + maxNanos / 1000 + " us"
+                    + ", allocated: " + bytes / 1024 + " KB";
+        }
+    }
+
+    private final Map<PipelineStage, StageSnapshot> stages;
+
+    InstrumentationSnapshot(Map<PipelineStage, LatencyHistogram> histograms) {
+        Map<PipelineStage, StageSnapshot> copy = new EnumMap<>(PipelineStage.class);
+        for (Map.Entry<PipelineStage, LatencyHistogram> entry : histograms.entrySet()) {
+            copy.put(entry.getKey(), new StageSnapshot(entry.getValue()));
+        }
+        stages = Collections.unmodifiableMap(copy);
+    }
+
+    public StageSnapshot get(PipelineStage stage) {
+        return stages.get(stage);
+    }
+
+    public Map<PipelineStage, StageSnapshot> getStages() {
+        return stages;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<PipelineStage, StageSnapshot> entry : stages.entrySet()) {
+            builder.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+        }
+        return builder.toString();
+    }
+}
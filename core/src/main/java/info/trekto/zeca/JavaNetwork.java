@@ -0,0 +1,493 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static info.trekto.zeca.TfliteModel.ACTIVATION_NONE;
+import static info.trekto.zeca.TfliteModel.ACTIVATION_RELU;
+import static info.trekto.zeca.TfliteModel.ACTIVATION_RELU6;
+import static info.trekto.zeca.TfliteModel.ACTIVATION_TANH;
+
+/**
+ * Runs a .tflite model in plain Java, without TensorFlow Lite and its native library.<p>
+ * Supports feed-forward models of fully connected layers (float, or int8 weights as produced by
+ * dynamic range quantization), ReLU, ReLU6, tanh, logistic and reshape, with float input and output.
+ * Other operators are rejected when the model is loaded.<p>
+ * Int8 layers work like the hybrid kernel of TensorFlow Lite: the input of each sample is quantized
+ * symmetrically to int8, multiplied with the weights in integers and scaled back, so the results match
+ * within a small tolerance.<p>
+ * Weights are stored transposed: the weights of one input are contiguous. Each input value is multiplied
+ * with its row and added to the sums of all outputs, a loop without dependencies between the iterations which
+ * the JIT can vectorize. Zero inputs (black pixels, neurons cut by ReLU) are skipped. A row is used by all
+ * samples of the batch before the next one, so the weights are read from memory once per batch.<p>
+ * Not thread-safe: activations are kept in buffers reused between the runs. Use one per thread.
+ */
+public class JavaNetwork {
+    private final int[] inputShape;
+    private final int[] outputShape;
+    private final int inputTensor;
+    private final int outputTensor;
+    private final int[] sampleSizes;
+    private final Layer[] layers;
+
+    // Activations of each tensor for the current batch, grown when a bigger batch comes
+    private final float[][] values;
+
+    /**
+     * @param model Contents of a .tflite file, e.g. memory-mapped. The weights are copied, so it can be released.
+     * @throws IllegalArgumentException If the model is not supported or corrupted.
+     */
+    public JavaNetwork(ByteBuffer model) {
+        try {
+            TfliteModel tflite = new TfliteModel(model);
+            if (tflite.getInputCount() != 1 || tflite.getOutputCount() != 1) {
+                throw new IllegalArgumentException("Only models with one input and one output are supported");
+            }
+            inputTensor = tflite.getInputTensor();
+            outputTensor = tflite.getOutputTensor();
+            if (tflite.getType(inputTensor) != TfliteModel.FLOAT32 || tflite.getType(outputTensor) != TfliteModel.FLOAT32) {
+                throw new IllegalArgumentException("Only models with float input and output are supported");
+            }
+            inputShape = tflite.getShape(inputTensor);
+            outputShape = tflite.getShape(outputTensor);
+
+            int operators = tflite.getOperatorCount();
+            layers = new Layer[operators];
+            int tensors = 0;
+            for (int i = 0; i < operators; i++) {
+                layers[i] = createLayer(tflite, i);
+                tensors = Math.max(tensors, Math.max(layers[i].input, layers[i].output) + 1);
+            }
+            tensors = Math.max(tensors, Math.max(inputTensor, outputTensor) + 1);
+            sampleSizes = new int[tensors];
+            values = new float[tensors][];
+            sampleSizes[inputTensor] = sampleSize(tflite.getShape(inputTensor));
+            for (Layer layer : layers) {
+                sampleSizes[layer.output] = sampleSize(tflite.getShape(layer.output));
+                layer.check(sampleSizes[layer.input], sampleSizes[layer.output]);
+            }
+        } catch (IndexOutOfBoundsException | BufferUnderflowException | NegativeArraySizeException ex) {
+            // Offsets or sizes in the file point outside of it: truncated or not a .tflite file
+            throw new IllegalArgumentException("Corrupted model", ex);
+        }
+    }
+
+    private static Layer createLayer(TfliteModel tflite, int operator) {
+        int code = tflite.getOperatorCode(operator);
+        int[] inputs = tflite.getOperatorInputs(operator);
+        int output = tflite.getOperatorOutputs(operator)[0];
+        switch (code) {
+            case TfliteModel.FULLY_CONNECTED:
+                return new Dense(tflite, inputs, output, tflite.getFusedActivation(operator));
+            case TfliteModel.RELU:
+                return new Activation(inputs[0], output, ACTIVATION_RELU);
+            case TfliteModel.RELU6:
+                return new Activation(inputs[0], output, ACTIVATION_RELU6);
+            case TfliteModel.TANH:
+                return new Activation(inputs[0], output, ACTIVATION_TANH);
+            case TfliteModel.LOGISTIC:
+                return new Logistic(inputs[0], output);
+            case TfliteModel.RESHAPE:
+                // Same values, only the shape is different
+                return new Activation(inputs[0], output, ACTIVATION_NONE);
+            default:
+                throw new IllegalArgumentException("Unsupported operator " + code + " (BuiltinOperator in schema.fbs)");
+        }
+    }
+
+    /**
+     * @return Number of values per sample, i.e. all dimensions except the batch one.
+     */
+    private static int sampleSize(int[] shape) {
+        int size = 1;
+        for (int i = 1; i < shape.length; i++) {
+            size *= shape[i];
+        }
+        return size;
+    }
+
+    /**
+     * @return Shape of the input tensor as stored in the model, e.g. [1, 1024].
+     */
+    public int[] getInputShape() {
+        return inputShape.clone();
+    }
+
+    /**
+     * @return Shape of the output tensor as stored in the model, e.g. [1, 1].
+     */
+    public int[] getOutputShape() {
+        return outputShape.clone();
+    }
+
+    /**
+     * Run the model on a batch of samples stored one after another.
+     *
+     * @param input     Floats in the order of the buffer, at least batchSize times the input sample size.
+     *                  Read with absolute gets, so the position is not changed.
+     * @param output    Receives batchSize times the output sample size floats with absolute puts.
+     * @param batchSize Number of samples.
+     */
+    public void run(ByteBuffer input, ByteBuffer output, int batchSize) {
+        float[] in = activations(inputTensor, batchSize);
+        int inputSize = batchSize * sampleSizes[inputTensor];
+        for (int i = 0; i < inputSize; i++) {
+            in[i] = input.getFloat(i * 4);
+        }
+        execute(batchSize);
+        float[] out = values[outputTensor];
+        int outputSize = batchSize * sampleSizes[outputTensor];
+        for (int i = 0; i < outputSize; i++) {
+            output.putFloat(i * 4, out[i]);
+        }
+    }
+
+    /**
+     * Run the model on a batch of samples stored one after another.
+     *
+     * @param input     At least batchSize times the input sample size values.
+     * @param output    Receives batchSize times the output sample size values.
+     * @param batchSize Number of samples.
+     */
+    public void run(float[] input, float[] output, int batchSize) {
+        System.arraycopy(input, 0, activations(inputTensor, batchSize), 0, batchSize * sampleSizes[inputTensor]);
+        execute(batchSize);
+        System.arraycopy(values[outputTensor], 0, output, 0, batchSize * sampleSizes[outputTensor]);
+    }
+
+    private void execute(int batchSize) {
+        for (Layer layer : layers) {
+            layer.run(values[layer.input], activations(layer.output, batchSize), batchSize);
+        }
+    }
+
+    private float[] activations(int tensor, int batchSize) {
+        int size = batchSize * sampleSizes[tensor];
+        if (values[tensor] == null || values[tensor].length < size) {
+            values[tensor] = new float[size];
+        }
+        return values[tensor];
+    }
+
+    private abstract static class Layer {
+        final int input;
+        final int output;
+        int outputSize;
+
+        Layer(int input, int output) {
+            this.input = input;
+            this.output = output;
+        }
+
+        /**
+         * @throws IllegalArgumentException If the sizes of the tensors do not fit the layer.
+         */
+        void check(int inputSize, int outputSize) {
+            if (inputSize != outputSize) {
+                throw new IllegalArgumentException("Input size " + inputSize + " differs from output size " + outputSize);
+            }
+            this.outputSize = outputSize;
+        }
+
+        abstract void run(float[] in, float[] out, int batchSize);
+    }
+
+    /**
+     * Fully connected layer: out = activation(weights * in + bias).
+     * The model stores the weights as [units][depth], here they are [depth][units].
+     */
+    private static class Dense extends Layer {
+        private final int units;
+        private final int depth;
+        private final float[] bias;
+        private final int activation;
+
+        // Either float weights or int8 weights with one scale per unit
+        private final float[] weights;
+        private final byte[] quantizedWeights;
+        private final float[] scales;
+
+        // Input of the batch quantized to int8, the scale of each sample and the integer sums
+        private byte[] quantizedInput = new byte[0];
+        private float[] inputScales = new float[0];
+        private int[] sums = new int[0];
+
+        Dense(TfliteModel tflite, int[] inputs, int output, int activation) {
+            super(inputs[0], output);
+            if (activation != ACTIVATION_NONE && activation != ACTIVATION_RELU
+                    && activation != ACTIVATION_RELU6 && activation != ACTIVATION_TANH) {
+                throw new IllegalArgumentException("Unsupported fused activation " + activation
+                        + " (ActivationFunctionType in schema.fbs)");
+            }
+            this.activation = activation;
+            int weightsTensor = inputs[1];
+            int[] shape = tflite.getShape(weightsTensor);
+            if (shape.length != 2 || !tflite.isConstant(weightsTensor)) {
+                throw new IllegalArgumentException("Fully connected layer " + tflite.getName(output)
+                        + " needs constant 2D weights");
+            }
+            units = shape[0];
+            depth = shape[1];
+
+            bias = inputs.length > 2 && inputs[2] >= 0 ? tflite.getFloats(inputs[2]) : new float[units];
+            if (bias.length != units) {
+                throw new IllegalArgumentException("Bias of " + tflite.getName(output) + " has " + bias.length
+                        + " values, expected " + units);
+            }
+
+            int type = tflite.getType(weightsTensor);
+            float[] tensorScales = tflite.getScales(weightsTensor);
+            int[] zeroPoints = tflite.getZeroPoints(weightsTensor);
+            if (type != TfliteModel.FLOAT32 && tensorScales.length == 0) {
+                throw new IllegalArgumentException("Quantized weights of " + tflite.getName(output)
+                        + " have no quantization parameters");
+            }
+            if (type == TfliteModel.FLOAT32) {
+                weights = transpose(tflite.getFloats(weightsTensor), units, depth);
+                quantizedWeights = null;
+                scales = null;
+            } else if (type == TfliteModel.INT8 && isZero(zeroPoints)) {
+                weights = null;
+                quantizedWeights = transpose(tflite.getBytes(weightsTensor), units, depth);
+                scales = unitScales(tensorScales, units);
+            } else if (type == TfliteModel.INT8 || type == TfliteModel.UINT8) {
+                // Asymmetric weights are rare (old converters), so they are simply dequantized
+                weights = transpose(dequantize(tflite.getBytes(weightsTensor), type == TfliteModel.UINT8,
+                        unitScales(tensorScales, units), zeroPoints, depth), units, depth);
+                quantizedWeights = null;
+                scales = null;
+            } else {
+                throw new IllegalArgumentException("Unsupported weights type " + type + " of " + tflite.getName(output));
+            }
+        }
+
+        @Override
+        void check(int inputSize, int outputSize) {
+            if (inputSize != depth || outputSize != units) {
+                throw new IllegalArgumentException("Fully connected layer " + depth + " -> " + units
+                        + " does not fit tensors of " + inputSize + " and " + outputSize + " values");
+            }
+            this.outputSize = outputSize;
+        }
+
+        @Override
+        void run(float[] in, float[] out, int batchSize) {
+            if (weights != null) {
+                runFloat(in, out, batchSize);
+            } else {
+                runQuantized(in, out, batchSize);
+            }
+            if (activation != ACTIVATION_NONE) {
+                activate(out, batchSize * units, activation);
+            }
+        }
+
+        private void runFloat(float[] in, float[] out, int batchSize) {
+            Arrays.fill(out, 0, batchSize * units, 0);
+            for (int i = 0; i < depth; i++) {
+                int row = i * units;
+                for (int sample = 0; sample < batchSize; sample++) {
+                    float value = in[sample * depth + i];
+                    if (value == 0) {
+                        continue;
+                    }
+                    int sum = sample * units;
+                    for (int unit = 0; unit < units; unit++) {
+                        out[sum + unit] += value * weights[row + unit];
+                    }
+                }
+            }
+            for (int sample = 0; sample < batchSize; sample++) {
+                for (int unit = 0; unit < units; unit++) {
+                    out[sample * units + unit] += bias[unit];
+                }
+            }
+        }
+
+        private void runQuantized(float[] in, float[] out, int batchSize) {
+            quantizeInput(in, batchSize);
+            if (sums.length < batchSize * units) {
+                sums = new int[batchSize * units];
+            }
+            Arrays.fill(sums, 0, batchSize * units, 0);
+            for (int i = 0; i < depth; i++) {
+                int row = i * units;
+                for (int sample = 0; sample < batchSize; sample++) {
+                    int value = quantizedInput[sample * depth + i];
+                    if (value == 0) {
+                        continue;
+                    }
+                    int sum = sample * units;
+                    for (int unit = 0; unit < units; unit++) {
+                        sums[sum + unit] += value * quantizedWeights[row + unit];
+                    }
+                }
+            }
+            for (int sample = 0; sample < batchSize; sample++) {
+                for (int unit = 0; unit < units; unit++) {
+                    int index = sample * units + unit;
+                    out[index] = bias[unit] + sums[index] * (inputScales[sample] * scales[unit]);
+                }
+            }
+        }
+
+        /**
+         * Quantize each sample to [-127, 127] by its max absolute value.
+         */
+        private void quantizeInput(float[] in, int batchSize) {
+            if (quantizedInput.length < batchSize * depth) {
+                quantizedInput = new byte[batchSize * depth];
+                inputScales = new float[batchSize];
+            }
+            for (int sample = 0; sample < batchSize; sample++) {
+                int start = sample * depth;
+                float max = 0;
+                for (int i = 0; i < depth; i++) {
+                    max = Math.max(max, Math.abs(in[start + i]));
+                }
+                if (max == 0) {
+                    Arrays.fill(quantizedInput, start, start + depth, (byte) 0);
+                    inputScales[sample] = 1;
+                    continue;
+                }
+                float inverse = 127 / max;
+                for (int i = 0; i < depth; i++) {
+                    float value = in[start + i] * inverse;
+                    // Rounding half away from zero
+                    int quantized = (int) (value < 0 ? value - 0.5f : value + 0.5f);
+                    quantizedInput[start + i] = (byte) Math.max(-127, Math.min(127, quantized));
+                }
+                inputScales[sample] = max / 127;
+            }
+        }
+
+        private static float[] transpose(float[] matrix, int rows, int columns) {
+            float[] result = new float[matrix.length];
+            for (int row = 0; row < rows; row++) {
+                for (int column = 0; column < columns; column++) {
+                    result[column * rows + row] = matrix[row * columns + column];
+                }
+            }
+            return result;
+        }
+
+        private static byte[] transpose(byte[] matrix, int rows, int columns) {
+            byte[] result = new byte[matrix.length];
+            for (int row = 0; row < rows; row++) {
+                for (int column = 0; column < columns; column++) {
+                    result[column * rows + row] = matrix[row * columns + column];
+                }
+            }
+            return result;
+        }
+
+        private static boolean isZero(int[] zeroPoints) {
+            for (int zeroPoint : zeroPoints) {
+                if (zeroPoint != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return Scale of each unit from a per-tensor or per-unit quantization.
+         */
+        private static float[] unitScales(float[] tensorScales, int units) {
+            if (tensorScales.length == units) {
+                return tensorScales;
+            }
+            if (tensorScales.length != 1) {
+                throw new IllegalArgumentException("Expected 1 or " + units + " scales, found " + tensorScales.length);
+            }
+            float[] result = new float[units];
+            Arrays.fill(result, tensorScales[0]);
+            return result;
+        }
+
+        private static float[] dequantize(byte[] quantized, boolean unsigned, float[] scales, int[] zeroPoints, int depth) {
+            float[] result = new float[quantized.length];
+            for (int i = 0; i < quantized.length; i++) {
+                int unit = i / depth;
+                int zeroPoint = zeroPoints.length == 0 ? 0 : zeroPoints[zeroPoints.length == 1 ? 0 : unit];
+                int value = unsigned ? quantized[i] & 0xff : quantized[i];
+                result[i] = (value - zeroPoint) * scales[unit];
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Standalone activation. Without a function it only copies, which is what a reshape does with flat values.
+     */
+    private static class Activation extends Layer {
+        private final int function;
+
+        Activation(int input, int output, int function) {
+            super(input, output);
+            this.function = function;
+        }
+
+        @Override
+        void run(float[] in, float[] out, int batchSize) {
+            int size = batchSize * outputSize;
+            System.arraycopy(in, 0, out, 0, size);
+            if (function != ACTIVATION_NONE) {
+                activate(out, size, function);
+            }
+        }
+    }
+
+    private static class Logistic extends Layer {
+        Logistic(int input, int output) {
+            super(input, output);
+        }
+
+        @Override
+        void run(float[] in, float[] out, int batchSize) {
+            int size = batchSize * outputSize;
+            for (int i = 0; i < size; i++) {
+                out[i] = (float) (1 / (1 + Math.exp(-in[i])));
+            }
+        }
+    }
+
+    private static void activate(float[] values, int size, int function) {
+        switch (function) {
+            case ACTIVATION_RELU:
+                for (int i = 0; i < size; i++) {
+                    values[i] = Math.max(0, values[i]);
+                }
+                break;
+            case ACTIVATION_RELU6:
+                for (int i = 0; i < size; i++) {
+                    values[i] = Math.min(6, Math.max(0, values[i]));
+                }
+                break;
+            case ACTIVATION_TANH:
+                for (int i = 0; i < size; i++) {
+                    values[i] = (float) Math.tanh(values[i]);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported fused activation " + function);
+        }
+    }
+}
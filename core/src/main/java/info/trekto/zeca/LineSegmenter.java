@@ -0,0 +1,239 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static info.trekto.zeca.PreprocessingWorkspace.luminance;
+
+/**
+ * Splits a line of text (e.g. a strip of a receipt) into glyphs.<p>
+ * The line is binarized once with its mean grey value as threshold, the same rule used for single digits.
+ * Black pixels are grouped into connected components (8-connected). Components smaller than the minimum area
+ * are noise. The rest are grouped by column projection: components whose columns overlap belong to the same glyph,
+ * so a slash which does not touch its zero stays with it. Glyphs are returned from left to right.<p>
+ * Each glyph can then be cropped from the line and preprocessed as a single digit with
+ * {@link PreprocessingWorkspace#convertToBlackAndWhiteCenteredImage(int[], int, int, int, int, int)}.
+ * Touching glyphs are returned as one.<p>
+ * Arrays are allocated once and grow only for bigger lines. Not thread-safe.
+ */
+public class LineSegmenter {
+    public static final int DEFAULT_MIN_COMPONENT_AREA = 8;
+
+    private static final int BACKGROUND = 0;
+
+    private final int minComponentArea;
+
+    private int[] labels = new int[0];
+    private int[] parent = new int[1];
+
+    // Bounding box and area of each component, indexed by label
+    private int[] minX = new int[1];
+    private int[] minY = new int[1];
+    private int[] maxX = new int[1];
+    private int[] maxY = new int[1];
+    private int[] area = new int[1];
+
+    // Components sorted by their left column: left in the high bits, label in the low ones
+    private long[] order = new long[1];
+
+    public LineSegmenter() {
+        this(DEFAULT_MIN_COMPONENT_AREA);
+    }
+
+    /**
+     * @param minComponentArea Smaller components (in pixels) are ignored as noise.
+     */
+    public LineSegmenter(int minComponentArea) {
+        this.minComponentArea = minComponentArea;
+    }
+
+    /**
+     * @param argb   Pixels of the line in row-major order. They are not modified.
+     * @param width  Width of the line.
+     * @param height Height of the line.
+     * @return Bounding boxes of the glyphs from left to right.
+     */
+    public List<Glyph> segment(int[] argb, int width, int height) {
+        int pixels = width * height;
+        if (labels.length < pixels) {
+            labels = new int[pixels];
+        }
+
+        int threshold = findThreshold(argb, pixels);
+        int count = label(argb, width, height, threshold);
+        measure(width, height, count);
+        return group(count);
+    }
+
+    private static int findThreshold(int[] argb, int pixels) {
+        long total = 0;
+        for (int i = 0; i < pixels; i++) {
+            total += luminance(argb[i]);
+        }
+        return Math.round(total / (float) pixels);
+    }
+
+    /**
+     * First pass of the two-pass labeling: give each black pixel the label of an already visited neighbour
+     * (left, upper left, upper, upper right) or a new one, and record which labels touch.
+     *
+     * @return Number of labels used, including the background.
+     */
+    private int label(int[] argb, int width, int height, int threshold) {
+        int next = 1;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = y * width + x;
+                if (luminance(argb[i]) >= threshold) {
+                    labels[i] = BACKGROUND;
+                    continue;
+                }
+
+                int label = BACKGROUND;
+                if (x > 0) {
+                    label = join(label, labels[i - 1]);
+                }
+                if (y > 0) {
+                    if (x > 0) {
+                        label = join(label, labels[i - width - 1]);
+                    }
+                    label = join(label, labels[i - width]);
+                    if (x < width - 1) {
+                        label = join(label, labels[i - width + 1]);
+                    }
+                }
+
+                if (label == BACKGROUND) {
+                    if (next == parent.length) {
+                        parent = Arrays.copyOf(parent, next * 2);
+                    }
+                    parent[next] = next;
+                    label = next++;
+                }
+                labels[i] = label;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * @return The smaller root of the two labels after merging them. Background is ignored.
+     */
+    private int join(int label, int neighbour) {
+        if (neighbour == BACKGROUND) {
+            return label;
+        }
+        int root = find(neighbour);
+        if (label == BACKGROUND) {
+            return root;
+        }
+        int otherRoot = find(label);
+        if (root == otherRoot) {
+            return root;
+        }
+        int min = Math.min(root, otherRoot);
+        parent[Math.max(root, otherRoot)] = min;
+        return min;
+    }
+
+    private int find(int label) {
+        while (parent[label] != label) {
+            // Path halving
+            parent[label] = parent[parent[label]];
+            label = parent[label];
+        }
+        return label;
+    }
+
+    /**
+     * Second pass: collect the bounding box and the area of each component under its root label.
+     */
+    private void measure(int width, int height, int count) {
+        if (area.length < count) {
+            minX = new int[parent.length];
+            minY = new int[parent.length];
+            maxX = new int[parent.length];
+            maxY = new int[parent.length];
+            area = new int[parent.length];
+        }
+        Arrays.fill(minX, 0, count, Integer.MAX_VALUE);
+        Arrays.fill(minY, 0, count, Integer.MAX_VALUE);
+        Arrays.fill(maxX, 0, count, -1);
+        Arrays.fill(maxY, 0, count, -1);
+        Arrays.fill(area, 0, count, 0);
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int label = labels[y * width + x];
+                if (label == BACKGROUND) {
+                    continue;
+                }
+                int root = find(label);
+                minX[root] = Math.min(minX[root], x);
+                minY[root] = Math.min(minY[root], y);
+                maxX[root] = Math.max(maxX[root], x);
+                maxY[root] = Math.max(maxY[root], y);
+                area[root]++;
+            }
+        }
+    }
+
+    /**
+     * Merge the components whose columns overlap, from left to right.
+     */
+    private List<Glyph> group(int count) {
+        if (order.length < count) {
+            order = new long[parent.length];
+        }
+        int components = 0;
+        for (int label = 1; label < count; label++) {
+            if (area[label] >= minComponentArea) {
+                order[components++] = ((long) minX[label] << Integer.SIZE) | label;
+            }
+        }
+        Arrays.sort(order, 0, components);
+
+        List<Glyph> glyphs = new ArrayList<>();
+        int left = 0;
+        int top = 0;
+        int right = -1;
+        int bottom = 0;
+        for (int i = 0; i < components; i++) {
+            int label = (int) order[i];
+            if (right >= 0 && minX[label] <= right) {
+                top = Math.min(top, minY[label]);
+                right = Math.max(right, maxX[label]);
+                bottom = Math.max(bottom, maxY[label]);
+                continue;
+            }
+            if (right >= 0) {
+                glyphs.add(new Glyph(left, top, right - left + 1, bottom - top + 1));
+            }
+            left = minX[label];
+            top = minY[label];
+            right = maxX[label];
+            bottom = maxY[label];
+        }
+        if (right >= 0) {
+            glyphs.add(new Glyph(left, top, right - left + 1, bottom - top + 1));
+        }
+        return glyphs;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the active model and replaces it without blocking the threads which use it.<p>
+ * The switch is a single atomic reference swap: users which already acquired the old model keep it,
+ * the next ones get the new one. The old model is closed when the last of its users releases it.
+ * Acquiring takes no locks, only a reference count.
+ *
+ * @param <T> The loaded model, e.g. a pool of interpreters.
+ */
+public abstract class ModelSlot<T> {
+
+    /**
+     * A model given to a user. It stays open until {@link #release()}.
+     *
+     * @param <T> The loaded model.
+     */
+    public static final class Lease<T> {
+        public final String name;
+        public final T model;
+        private final ModelSlot<T> slot;
+
+        // 1 for the slot while the model is active plus 1 for each user. 0 means closed.
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        private Lease(ModelSlot<T> slot, String name, T model) {
+            this.slot = slot;
+            this.name = name;
+            this.model = model;
+        }
+
+        /**
+         * @return False if the model is already closed.
+         */
+        private boolean retain() {
+            while (true) {
+                int count = references.get();
+                if (count == 0) {
+                    return false;
+                }
+                if (references.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Must be called once for each {@link ModelSlot#acquire()} which returned this lease.
+         */
+        public void release() {
+            if (references.decrementAndGet() == 0) {
+                slot.close(name, model);
+            }
+        }
+    }
+
+    private final AtomicReference<Lease<T>> active = new AtomicReference<>();
+
+    // Guards the swap of the active model against close(), so a model activated after it is not leaked
+    private final Object lock = new Object();
+    private boolean closed;
+
+    /**
+     * Called once for each activated model, when it is not active and not used any more.
+     *
+     * @param name  Name of the model.
+     * @param model The model to close.
+     */
+    protected abstract void close(String name, T model);
+
+    /**
+     * Make the model active. The previous one is closed when its users release it.
+     *
+     * @param name  Name of the model, e.g. part of the key of a {@link ResultCache}.
+     * @param model Loaded model. The slot owns it from now on.
+     * @return False if the slot is closed. The model is closed then.
+     */
+    public boolean activate(String name, T model) {
+        Lease<T> old;
+        synchronized (lock) {
+            if (closed) {
+                close(name, model);
+                return false;
+            }
+            old = active.getAndSet(new Lease<>(this, name, model));
+        }
+        if (old != null) {
+            // Closed now or by the last user
+            old.release();
+        }
+        return true;
+    }
+
+    /**
+     * @return The active model, which must be released after use, or null if no model is active.
+     */
+    public Lease<T> acquire() {
+        while (true) {
+            Lease<T> lease = active.get();
+            // If it was closed meanwhile, it is not active any more
+            if (lease == null || lease.retain()) {
+                return lease;
+            }
+        }
+    }
+
+    /**
+     * @return Name of the active model or null if no model is active.
+     */
+    public String getActiveName() {
+        Lease<T> lease = active.get();
+        return lease == null ? null : lease.name;
+    }
+
+    /**
+     * The active model is closed when its users release it. Models activated later are closed at once.
+     */
+    public void close() {
+        Lease<T> lease;
+        synchronized (lock) {
+            closed = true;
+            lease = active.getAndSet(null);
+        }
+        if (lease != null) {
+            lease.release();
+        }
+    }
+}
@@ -16,12 +16,12 @@ limitations under the License.
 
 package info.trekto.zeca;
 
-class Classification {
-    final char recognizedDigit;
-    final float confidence;
-
-    Classification(char recognizedDigit, float confidence) {
-        this.recognizedDigit = recognizedDigit;
-        this.confidence = confidence;
-    }
+/**
+ * Stages of the classification of one image measured by {@link Instrumentation}.
+ */
+public enum PipelineStage {
+    DECODE,
+    ROTATE,
+    PREPROCESS,
+    INFERENCE
 }
@@ -0,0 +1,569 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Pure Java version of the preprocessing done by {@code ImagePreprocessor.convertToBlackAndWhiteCenteredImage}.<p>
+ * It does not create bitmaps. All intermediate images are kept in arrays allocated once per workspace,
+ * so preprocessing does not allocate anything after the first call with the biggest image.<p>
+ * Pixels are grey values between [0, 255] (the red channel of the monochrome bitmap).<p>
+ * A workspace is not thread-safe. Use one workspace per thread.
+ */
+public class PreprocessingWorkspace {
+    public static final int IMAGE_W = 32;
+    public static final int IMAGE_H = 32;
+    public static final int TOTAL_PIXELS = IMAGE_W * IMAGE_H;
+    public static final int FLOAT_BYTES = 4;
+
+    static final int BLACK = 0;
+    static final int WHITE = 255;
+
+    /**
+     * Coefficients used by android.graphics.ColorMatrix.setSaturation(0).
+     */
+    private static final float R_LUMINANCE = 0.213f;
+    private static final float G_LUMINANCE = 0.715f;
+    private static final float B_LUMINANCE = 0.072f;
+
+    private int[] source = new int[0];
+    private final int[] scaled = new int[TOTAL_PIXELS];
+    private final int[] framed = new int[TOTAL_PIXELS];
+    private final int[] centered = new int[TOTAL_PIXELS];
+    private final int[] values = new int[TOTAL_PIXELS];
+    private final int[] histogram = new int[WHITE + 1];
+    private long scaledTotal;
+    private int scaledWidth;
+    private int scaledHeight;
+    private final TensorLayout layout;
+
+    /**
+     * Workspace for the bundled model, which expects {@link TensorLayout#COLUMN_MAJOR}.
+     */
+    public PreprocessingWorkspace() {
+        this(TensorLayout.COLUMN_MAJOR);
+    }
+
+    /**
+     * @param layout Layout of the values returned by {@link #getPixelsValues()}
+     *               and written by {@link #writeNormalized(ByteBuffer, int)}.
+     */
+    public PreprocessingWorkspace(TensorLayout layout) {
+        this.layout = layout;
+    }
+
+    /**
+     * Buffer for ARGB pixels of the original image (e.g. for Bitmap.getPixels()).
+     * It grows only when a bigger image comes.
+     *
+     * @param size Number of pixels.
+     * @return Array with at least size elements. It is owned by the workspace.
+     */
+    public int[] getSourceBuffer(int size) {
+        if (source.length < size) {
+            source = new int[size];
+        }
+        return source;
+    }
+
+    /**
+     * 1. Convert to monochrome
+     * 2. Scale antialiasing
+     * 3. Convert to black and white
+     * 4. Add fixed frame
+     * 5. Center image in the given frame<p>
+     * The steps are fused: the first pass over the scaled image computes the grey values,
+     * their sum and histogram, the second one thresholds and collects the centering data
+     * and the final write puts the image directly at its centered position in the frame.
+     * The result is the same as doing the steps one by one.
+     *
+     * @param argb   Pixels of the original image in row-major order. They are not modified.
+     * @param width  Width of the original image.
+     * @param height Height of the original image.
+     * @return Black and white image (values 0 or 255) centered within a fixed frame in row-major order.
+     * The array is owned by the workspace and is overwritten by the next call.
+     */
+    public int[] convertToBlackAndWhiteCenteredImage(int[] argb, int width, int height) {
+        return convertToBlackAndWhiteCenteredImage(argb, width, 0, 0, width, height);
+    }
+
+    /**
+     * The same as {@link #convertToBlackAndWhiteCenteredImage(int[], int, int)} but for a region of a bigger image,
+     * e.g. one glyph of a line. The region is not copied.
+     *
+     * @param argb      Pixels of the whole image in row-major order. They are not modified.
+     * @param rowStride Width of the whole image.
+     * @param left      X of the region.
+     * @param top       Y of the region.
+     * @param width     Width of the region.
+     * @param height    Height of the region.
+     * @return Black and white image (values 0 or 255) centered within a fixed frame in row-major order.
+     * The array is owned by the workspace and is overwritten by the next call.
+     */
+    public int[] convertToBlackAndWhiteCenteredImage(int[] argb, int rowStride, int left, int top, int width, int height) {
+        scaleMonochrome(argb, rowStride, left, top, width, height, IMAGE_W);
+        return thresholdAndCenter();
+    }
+
+    /**
+     * The same as {@link #convertToBlackAndWhiteCenteredImage(int[], int, int)} but for a region of
+     * a luminance (grey) plane, e.g. the Y plane of a camera preview frame in NV21 format.
+     * The luminance is used directly as grey value, so there is no monochrome conversion.
+     *
+     * @param luminance Grey values [0, 255] as unsigned bytes in row-major order. They are not modified.
+     * @param rowStride Number of bytes between the beginnings of two rows of the plane.
+     * @param left      X of the region of interest in the plane.
+     * @param top       Y of the region of interest in the plane.
+     * @param width     Width of the region of interest.
+     * @param height    Height of the region of interest.
+     * @return Black and white image (values 0 or 255) centered within a fixed frame in row-major order.
+     * The array is owned by the workspace and is overwritten by the next call.
+     */
+    public int[] convertLuminanceToBlackAndWhiteCenteredImage(byte[] luminance, int rowStride,
+                                                              int left, int top, int width, int height) {
+        scaleLuminance(luminance, rowStride, left, top, width, height, IMAGE_W);
+        return thresholdAndCenter();
+    }
+
+    /**
+     * Threshold the scaled image by its mean and write it centered in the frame.
+     * See {@link #convertToBlackAndWhiteCenteredImage(int[], int, int)}.
+     */
+    private int[] thresholdAndCenter() {
+        int threshold = Math.round(scaledTotal / (float) (scaledWidth * scaledHeight));
+        int left = (IMAGE_W - scaledWidth) / 2;
+        int top = (IMAGE_H - scaledHeight) / 2;
+
+        int blackPixelsCount = 0;
+        int sumX = 0;
+        int blackTop = IMAGE_H;
+        int blackBottom = 0;
+
+        for (int y = 0; y < scaledHeight; y++) {
+            int rowBlackPixels = 0;
+            for (int x = 0; x < scaledWidth; x++) {
+                int i = y * scaledWidth + x;
+                if (scaled[i] < threshold) {
+                    scaled[i] = BLACK;
+                    rowBlackPixels++;
+                    sumX += left + x;
+                } else {
+                    scaled[i] = WHITE;
+                }
+            }
+            if (rowBlackPixels > 0) {
+                if (top + y < blackTop) blackTop = top + y;
+                blackBottom = top + y;
+                blackPixelsCount += rowBlackPixels;
+            }
+        }
+
+        // A pixel counts only if darker than the mean. If all pixels are black, none of them is.
+        if (blackPixelsCount == TOTAL_PIXELS) {
+            blackPixelsCount = 0;
+            sumX = 0;
+            blackTop = IMAGE_H;
+            blackBottom = 0;
+        }
+
+        // Position of the scaled image in the centered one
+        int diffX = IMAGE_W / 2 - centerOfMassX(sumX, blackPixelsCount) + left;
+        int diffY = IMAGE_H / 2 - boundingBoxCenterY(blackTop, blackBottom) + top;
+
+        for (int y = 0; y < IMAGE_H; y++) {
+            int oldY = y - diffY;
+            for (int x = 0; x < IMAGE_W; x++) {
+                int oldX = x - diffX;
+                if (oldX < 0 || oldX >= scaledWidth || oldY < 0 || oldY >= scaledHeight) {
+                    centered[y * IMAGE_W + x] = WHITE;
+                } else {
+                    centered[y * IMAGE_W + x] = scaled[oldY * scaledWidth + oldX];
+                }
+            }
+        }
+        return centered;
+    }
+
+    /**
+     * The steps of {@link #convertToBlackAndWhiteCenteredImage(int[], int, int)} one by one,
+     * as they were done with bitmaps. The reference for the fused version in {@code PreprocessingWorkspaceTest}.
+     */
+    int[] convertToBlackAndWhiteCenteredImageStepByStep(int[] argb, int width, int height) {
+        scaleMonochrome(argb, width, 0, 0, width, height, IMAGE_W);
+        int scaledPixels = scaledWidth * scaledHeight;
+        convertToBlackAndWhite(scaled, scaledPixels, findBlackAndWhiteAverage(scaled, scaledPixels));
+        addFrame();
+        centerImage();
+        return centered;
+    }
+
+    /**
+     * X coordinate of the center of mass of the black pixels.
+     * Computed with the same float expressions as {@link #centerImage()}, so the rounding is the same.
+     *
+     * @param sumX             Sum of the x coordinates of all black pixels.
+     * @param blackPixelsCount Number of black pixels.
+     * @return Rounded x of the center of mass. 0 if there are no black pixels.
+     */
+    static int centerOfMassX(int sumX, int blackPixelsCount) {
+        int mass = WHITE - BLACK;
+        float meanBlackPixelMass = mass * blackPixelsCount / (float) blackPixelsCount;
+        return Math.round(mass * sumX / meanBlackPixelMass / (float) blackPixelsCount);
+    }
+
+    /**
+     * @param top    The first row with black pixels or IMAGE_H if none.
+     * @param bottom The last row with black pixels or 0 if none.
+     * @return Rounded y of the center of the bounding box.
+     */
+    static int boundingBoxCenterY(int top, int bottom) {
+        return Math.round(top + (bottom - top) / 2f);
+    }
+
+    /**
+     * @return Number of pixels of each grey value [0, 255] in the last scaled image. Owned by the workspace.
+     */
+    public int[] getHistogram() {
+        return histogram;
+    }
+
+    /**
+     * The same as {@link #convertToBlackAndWhiteCenteredImage(int[], int, int)} but the result is bit-packed.
+     * Thresholding writes bits directly into the frame and centering works on whole rows.
+     *
+     * @param argb   Pixels of the original image in row-major order. They are not modified.
+     * @param width  Width of the original image.
+     * @param height Height of the original image.
+     * @param image  Receives the black and white centered image.
+     */
+    public void convertToBitPackedImage(int[] argb, int width, int height, BitPackedImage image) {
+        scaleMonochrome(argb, width, 0, 0, width, height, IMAGE_W);
+        int threshold = Math.round(scaledTotal / (float) (scaledWidth * scaledHeight));
+        image.threshold(scaled, scaledWidth, scaledHeight, threshold,
+                (IMAGE_W - scaledWidth) / 2, (IMAGE_H - scaledHeight) / 2);
+        image.center();
+    }
+
+    /**
+     * @return Layout of the values written by this workspace.
+     */
+    public TensorLayout getLayout() {
+        return layout;
+    }
+
+    /**
+     * Get the values of the last centered image in the layout of the workspace.
+     *
+     * @return Array with integers between [0, 255]. It is owned by the workspace.
+     */
+    public int[] getPixelsValues() {
+        for (int y = 0; y < IMAGE_H; y++) {
+            for (int x = 0; x < IMAGE_W; x++) {
+                values[layout.index(x, y, IMAGE_W, IMAGE_H)] = centered[y * IMAGE_W + x];
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @param image Receives the last centered image packed in bits.
+     */
+    public void pack(BitPackedImage image) {
+        image.pack(centered);
+    }
+
+    /**
+     * Divide the values of the last centered image by 255 and write them directly into a model input buffer,
+     * in the layout of the workspace. Absolute puts are used, so the position of the buffer is not changed.
+     *
+     * @param input      Buffer with native byte order, normally a direct one.
+     * @param byteOffset Where the image starts in the buffer.
+     */
+    public void writeNormalized(ByteBuffer input, int byteOffset) {
+        for (int y = 0; y < IMAGE_H; y++) {
+            for (int x = 0; x < IMAGE_W; x++) {
+                int index = layout.index(x, y, IMAGE_W, IMAGE_H);
+                input.putFloat(byteOffset + index * FLOAT_BYTES, centered[y * IMAGE_W + x] / 255f);
+            }
+        }
+    }
+
+    /**
+     * Write the last centered image directly into the input buffer of a quantized (uint8 or int8) model,
+     * in the layout of the workspace. The image is strictly black and white,
+     * so only two quantized values are calculated: real value = (quantized value - zeroPoint) * scale.
+     *
+     * @param input      Buffer for the model input.
+     * @param byteOffset Where the image starts in the buffer.
+     * @param scale      Quantization scale of the input tensor.
+     * @param zeroPoint  Quantization zero point of the input tensor.
+     * @param signed     True for int8, false for uint8.
+     */
+    public void writeQuantized(ByteBuffer input, int byteOffset, float scale, int zeroPoint, boolean signed) {
+        byte black = quantize(BLACK / 255f, scale, zeroPoint, signed);
+        byte white = quantize(WHITE / 255f, scale, zeroPoint, signed);
+        for (int y = 0; y < IMAGE_H; y++) {
+            for (int x = 0; x < IMAGE_W; x++) {
+                int index = layout.index(x, y, IMAGE_W, IMAGE_H);
+                input.put(byteOffset + index, centered[y * IMAGE_W + x] == BLACK ? black : white);
+            }
+        }
+    }
+
+    /**
+     * @return The value quantized and clamped to the range of the type.
+     */
+    static byte quantize(float value, float scale, int zeroPoint, boolean signed) {
+        int quantized = Math.round(value / scale) + zeroPoint;
+        int min = signed ? Byte.MIN_VALUE : 0;
+        int max = signed ? Byte.MAX_VALUE : 255;
+        return (byte) Math.max(min, Math.min(max, quantized));
+    }
+
+    /**
+     * Monochrome conversion and antialiasing (bilinear) scaling in one step.
+     * The grey value of a source pixel is computed only if the pixel is sampled,
+     * which gives the same result as converting the whole image first.
+     * The sum and the histogram of the scaled grey values are collected in the same pass.<p>
+     * Size is calculated as in {@code ImagePreprocessor.scaleBitmap}:
+     * 600x200 and maxLengthPixels = 32 will become 32x10.
+     *
+     * @param argb            Pixels of the original image.
+     * @param rowStride       Width of the original image.
+     * @param left            X of the scaled region.
+     * @param top             Y of the scaled region.
+     * @param width           Width of the scaled region.
+     * @param height          Height of the scaled region.
+     * @param maxLengthPixels Max size of either width or height.
+     */
+    private void scaleMonochrome(int[] argb, int rowStride, int left, int top,
+                                 int width, int height, int maxLengthPixels) {
+        float scaleFactor = Math.max(width / (float) maxLengthPixels, height / (float) maxLengthPixels);
+        scaledWidth = (int) (width / scaleFactor);
+        scaledHeight = (int) (height / scaleFactor);
+        if (scaledWidth <= 0 || scaledHeight <= 0) {
+            throw new IllegalArgumentException("Cannot scale " + width + "x" + height + " image");
+        }
+
+        float stepX = width / (float) scaledWidth;
+        float stepY = height / (float) scaledHeight;
+        Arrays.fill(histogram, 0);
+        long total = 0;
+
+        for (int y = 0; y < scaledHeight; y++) {
+            // Sample at the pixel centre
+            float sourceY = clamp((y + 0.5f) * stepY - 0.5f, height - 1);
+            int y0 = (int) sourceY;
+            int row0 = (top + y0) * rowStride + left;
+            int row1 = (top + Math.min(y0 + 1, height - 1)) * rowStride + left;
+            float weightY = sourceY - y0;
+
+            for (int x = 0; x < scaledWidth; x++) {
+                float sourceX = clamp((x + 0.5f) * stepX - 0.5f, width - 1);
+                int x0 = (int) sourceX;
+                int x1 = Math.min(x0 + 1, width - 1);
+                float weightX = sourceX - x0;
+
+                float topValue = lerp(luminance(argb[row0 + x0]), luminance(argb[row0 + x1]), weightX);
+                float bottomValue = lerp(luminance(argb[row1 + x0]), luminance(argb[row1 + x1]), weightX);
+                int grey = Math.round(lerp(topValue, bottomValue, weightY));
+                scaled[y * scaledWidth + x] = grey;
+                histogram[grey]++;
+                total += grey;
+            }
+        }
+        scaledTotal = total;
+    }
+
+    /**
+     * Antialiasing (bilinear) scaling of a region of a luminance plane, as {@link #scaleMonochrome}
+     * does for ARGB pixels. The sum and the histogram of the scaled grey values are collected in the same pass.
+     *
+     * @param maxLengthPixels Desired max length of the scaled image.
+     */
+    private void scaleLuminance(byte[] luminance, int rowStride, int left, int top,
+                                int width, int height, int maxLengthPixels) {
+        float scaleFactor = Math.max(width / (float) maxLengthPixels, height / (float) maxLengthPixels);
+        scaledWidth = (int) (width / scaleFactor);
+        scaledHeight = (int) (height / scaleFactor);
+        if (scaledWidth <= 0 || scaledHeight <= 0) {
+            throw new IllegalArgumentException("Cannot scale " + width + "x" + height + " image");
+        }
+
+        float stepX = width / (float) scaledWidth;
+        float stepY = height / (float) scaledHeight;
+        Arrays.fill(histogram, 0);
+        long total = 0;
+
+        for (int y = 0; y < scaledHeight; y++) {
+            // Sample at the pixel centre
+            float sourceY = clamp((y + 0.5f) * stepY - 0.5f, height - 1);
+            int y0 = (int) sourceY;
+            int row0 = (top + y0) * rowStride + left;
+            int row1 = (top + Math.min(y0 + 1, height - 1)) * rowStride + left;
+            float weightY = sourceY - y0;
+
+            for (int x = 0; x < scaledWidth; x++) {
+                float sourceX = clamp((x + 0.5f) * stepX - 0.5f, width - 1);
+                int x0 = (int) sourceX;
+                int x1 = Math.min(x0 + 1, width - 1);
+                float weightX = sourceX - x0;
+
+                float topValue = lerp(luminance[row0 + x0] & 0xff, luminance[row0 + x1] & 0xff, weightX);
+                float bottomValue = lerp(luminance[row1 + x0] & 0xff, luminance[row1 + x1] & 0xff, weightX);
+                int grey = Math.round(lerp(topValue, bottomValue, weightY));
+                scaled[y * scaledWidth + x] = grey;
+                histogram[grey]++;
+                total += grey;
+            }
+        }
+        scaledTotal = total;
+    }
+
+    private static float clamp(float value, int max) {
+        return value < 0 ? 0 : (value > max ? max : value);
+    }
+
+    private static float lerp(float a, float b, float weight) {
+        return a + (b - a) * weight;
+    }
+
+    /**
+     * @param pixel ARGB colour.
+     * @return Grey value between [0, 255].
+     */
+    static int luminance(int pixel) {
+        int r = (pixel >> 16) & 0xff;
+        int g = (pixel >> 8) & 0xff;
+        int b = pixel & 0xff;
+        return Math.min(WHITE, Math.round(R_LUMINANCE * r + G_LUMINANCE * g + B_LUMINANCE * b));
+    }
+
+    /**
+     * Calculate average pixel colour.
+     *
+     * @param pixels Grey values.
+     * @param count  Number of pixels to use.
+     * @return Average pixel colour.
+     */
+    private static int findBlackAndWhiteAverage(int[] pixels, int count) {
+        long total = 0;
+
+        for (int i = 0; i < count; i++) {
+            total += pixels[i];
+        }
+
+        return Math.round(total / (float) count);
+    }
+
+    /**
+     * All pixels darker than threshold become black.
+     * All pixels brighter then or equal to threshold become white.
+     *
+     * @param pixels    Grey values.
+     * @param count     Number of pixels to use.
+     * @param threshold Black and white threshold.
+     */
+    private static void convertToBlackAndWhite(int[] pixels, int count, int threshold) {
+        for (int i = 0; i < count; i++) {
+            pixels[i] = pixels[i] < threshold ? BLACK : WHITE;
+        }
+    }
+
+    /**
+     * Put the scaled image in the middle of a white IMAGE_W x IMAGE_H frame.
+     * The offset is rounded down. It does not affect the result because the image is centered after that.
+     */
+    private void addFrame() {
+        Arrays.fill(framed, WHITE);
+        int left = (IMAGE_W - scaledWidth) / 2;
+        int top = (IMAGE_H - scaledHeight) / 2;
+        for (int y = 0; y < scaledHeight; y++) {
+            System.arraycopy(scaled, y * scaledWidth, framed, (top + y) * IMAGE_W + left, scaledWidth);
+        }
+    }
+
+    /**
+     * Center image based on:
+     * - its center of mass for x coordinate;
+     * - bounding box (frame) for y coordinate.
+     */
+    private void centerImage() {
+        int totalMassX = 0;
+        int top = IMAGE_H;
+        int bottom = 0;
+        int blackPixelsCount = 0;
+        int totalBlackPixelsMass = 0;
+        float meanColorValue = 0;
+
+        for (int x = 0; x < IMAGE_W; x++) {
+            for (int y = 0; y < IMAGE_H; y++) {
+                meanColorValue += framed[y * IMAGE_W + x];
+            }
+        }
+
+        meanColorValue /= (float) TOTAL_PIXELS;
+
+        for (int x = 0; x < IMAGE_W; x++) {
+            for (int y = 0; y < IMAGE_H; y++) {
+                int r = framed[y * IMAGE_W + x];
+
+                // If dark enough
+                if (r < meanColorValue) {
+                    int mass = (255 - r);
+                    totalMassX += mass * x;
+                    totalBlackPixelsMass += mass;
+                    blackPixelsCount++;
+
+                    if (y < top) top = y;
+                    if (y > bottom) bottom = y;
+                }
+            }
+        }
+
+        float meanBlackPixelMass = totalBlackPixelsMass / (float) blackPixelsCount;
+        int centerWeightX = Math.round(totalMassX / meanBlackPixelMass / (float) blackPixelsCount);
+        int centerFormY = Math.round(top + (bottom - top) / 2f);
+
+        move(framed, centered, IMAGE_W / 2 - centerWeightX, IMAGE_H / 2 - centerFormY);
+    }
+
+    /**
+     * Move image with diff_x and diff_y from the center.
+     *
+     * @param pixels    Pixels represent the image.
+     * @param newPixels Destination for the moved image.
+     * @param diff_x    X difference from center.
+     * @param diff_y    Y difference from center.
+     */
+    private static void move(int[] pixels, int[] newPixels, int diff_x, int diff_y) {
+        for (int x = 0; x < IMAGE_W; x++) {
+            for (int y = 0; y < IMAGE_H; y++) {
+                int oldX = x - diff_x;
+                int oldY = y - diff_y;
+
+                if (oldX < 0 || oldX >= IMAGE_W || oldY < 0 || oldY >= IMAGE_H) {
+                    newPixels[y * IMAGE_W + x] = WHITE;
+                } else {
+                    newPixels[y * IMAGE_W + x] = pixels[oldY * IMAGE_W + oldX];
+                }
+            }
+        }
+    }
+}
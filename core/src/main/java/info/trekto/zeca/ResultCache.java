@@ -0,0 +1,129 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of classifications keyed by the preprocessed (black and white, centered) image.
+ * The same glyphs come again and again (re-scans, sample images, digits printed by the same printer),
+ * so the model is not run for images it has already seen.<p>
+ * Entries are keyed by the model too, so a result of one model is never returned for another and switching
+ * back and forth between models keeps the results of both. Entries of a model not used any more are evicted
+ * as the least recently used.<p>
+ * Thread-safe.
+ */
+public class ResultCache {
+    private final Map<Key, Classification> entries;
+
+    // Reused for the lookups, so a lookup does not allocate
+    private final Key probe = new Key(null, null);
+    private long hits;
+    private long misses;
+
+    /**
+     * @param capacity Max number of cached classifications.
+     */
+    public ResultCache(final int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        entries = new LinkedHashMap<Key, Classification>(capacity, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Classification> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @param model Name of the model which would classify the image.
+     * @param image Preprocessed image. Not stored, so it can be reused for the next lookups.
+     * @return Cached classification or null.
+     */
+    public synchronized Classification get(String model, BitPackedImage image) {
+        probe.model = model;
+        probe.image = image;
+        Classification classification = entries.get(probe);
+        probe.image = null;
+        if (classification == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return classification;
+    }
+
+    /**
+     * @param model          Name of the model which classified the image.
+     * @param image          Preprocessed image. Stored as it is, so it must not be changed afterwards.
+     *                       Pass a copy of a reused image.
+     * @param classification The result of the model.
+     */
+    public synchronized void put(String model, BitPackedImage image, Classification classification) {
+        entries.put(new Key(model, image), classification);
+    }
+
+    /**
+     * Remove all entries, e.g. when the model file is replaced under the same name.
+     */
+    public synchronized void invalidate() {
+        entries.clear();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "size: " + entries.size() + ", hits: " + hits + ", misses: " + misses;
+    }
+
+    private static class Key {
+        String model;
+        BitPackedImage image;
+
+        Key(String model, BitPackedImage image) {
+            this.model = model;
+            this.image = image;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return model.equals(other.model) && image.equals(other.image);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * model.hashCode() + image.hashCode();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+import java.nio.ByteBuffer;
+
+import static info.trekto.zeca.PreprocessingWorkspace.TOTAL_PIXELS;
+
+/**
+ * Format of a model input or output tensor: float or quantized (uint8/int8) with its scale and zero point.
+ * Writes the preprocessed images into the input and reads the probabilities from the output,
+ * so the Android and the JVM classifiers encode them in the same way.
+ * Real value = (quantized value - zeroPoint) * scale.
+ */
+public class TensorFormat {
+    public static final TensorFormat FLOAT = new TensorFormat(Type.FLOAT32, 0, 0);
+
+    public enum Type {
+        FLOAT32(4), UINT8(1), INT8(1);
+
+        public final int byteSize;
+
+        Type(int byteSize) {
+            this.byteSize = byteSize;
+        }
+    }
+
+    public final Type type;
+    public final float scale;
+    public final int zeroPoint;
+
+    public TensorFormat(Type type, float scale, int zeroPoint) {
+        this.type = type;
+        this.scale = scale;
+        this.zeroPoint = zeroPoint;
+    }
+
+    /**
+     * @param typeName  Name of the TensorFlow Lite data type, e.g. DataType.FLOAT32.name().
+     * @param scale     Quantization scale of the tensor.
+     * @param zeroPoint Quantization zero point of the tensor.
+     * @throws IllegalArgumentException If the type is not float32, uint8 or int8.
+     */
+    public static TensorFormat of(String typeName, float scale, int zeroPoint) {
+        for (Type type : Type.values()) {
+            if (type.name().equals(typeName)) {
+                return new TensorFormat(type, scale, zeroPoint);
+            }
+        }
+        throw new IllegalArgumentException("Unsupported tensor type: " + typeName);
+    }
+
+    /**
+     * @return 4 bytes per pixel for float models, 1 for quantized ones.
+     */
+    public int getBytesPerImage() {
+        return TOTAL_PIXELS * type.byteSize;
+    }
+
+    /**
+     * Write the last image preprocessed by the workspace: normalized floats for float models,
+     * raw bytes for quantized ones. Thread-safe: different threads can write different images of the same buffer.
+     *
+     * @param workspace Workspace which preprocessed the image.
+     * @param input     Direct buffer in native order.
+     * @param index     Position of the image in the buffer (0 for single image buffers).
+     */
+    public void writeImage(PreprocessingWorkspace workspace, ByteBuffer input, int index) {
+        int byteOffset = index * getBytesPerImage();
+        if (type == Type.FLOAT32) {
+            workspace.writeNormalized(input, byteOffset);
+        } else {
+            workspace.writeQuantized(input, byteOffset, scale, zeroPoint, type == Type.INT8);
+        }
+    }
+
+    /**
+     * Unpack a bit-packed image directly in this format.
+     *
+     * @param image  Black and white centered image.
+     * @param layout Layout of the model input.
+     * @param input  Direct buffer in native order.
+     * @param index  Position of the image in the buffer (0 for single image buffers).
+     */
+    public void writeImage(BitPackedImage image, TensorLayout layout, ByteBuffer input, int index) {
+        int byteOffset = index * getBytesPerImage();
+        if (type == Type.FLOAT32) {
+            image.writeNormalized(input, byteOffset, layout);
+        } else {
+            image.writeQuantized(input, byteOffset, scale, zeroPoint, type == Type.INT8, layout);
+        }
+    }
+
+    /**
+     * @param output Output buffer with one value per image.
+     * @param index  Position of the image.
+     * @return The value for the image, dequantized if the model is quantized.
+     */
+    public float readValue(ByteBuffer output, int index) {
+        switch (type) {
+            case UINT8:
+                return ((output.get(index) & 0xff) - zeroPoint) * scale;
+            case INT8:
+                return (output.get(index) - zeroPoint) * scale;
+            default:
+                return output.getFloat(index * type.byteSize);
+        }
+    }
+
+}
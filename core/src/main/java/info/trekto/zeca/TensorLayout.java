@@ -0,0 +1,52 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+/**
+ * Order in which the pixels of an image are flattened into the model input.
+ */
+public enum TensorLayout {
+    /**
+     * Rows one after another: (x, y) is at y * width + x.
+     */
+    ROW_MAJOR {
+        @Override
+        public int index(int x, int y, int width, int height) {
+            return y * width + x;
+        }
+    },
+
+    /**
+     * Columns one after another: (x, y) is at x * height + y.
+     * The bundled model is trained with this layout.
+     */
+    COLUMN_MAJOR {
+        @Override
+        public int index(int x, int y, int width, int height) {
+            return x * height + y;
+        }
+    };
+
+    /**
+     * @param x      Column of the pixel.
+     * @param y      Row of the pixel.
+     * @param width  Width of the image.
+     * @param height Height of the image.
+     * @return Index of the pixel in the flattened image.
+     */
+    public abstract int index(int x, int y, int width, int height);
+}
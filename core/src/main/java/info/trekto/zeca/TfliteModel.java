@@ -0,0 +1,346 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads the parts of a .tflite file needed to run a feed-forward model without TensorFlow Lite:
+ * the tensors of the main subgraph with their constant data and quantization, and the operators in execution order.<p>
+ * The file is a flatbuffer (schema.fbs of TensorFlow Lite). Tables are read directly from the buffer
+ * with absolute positions, nothing is copied until the constant data is asked for.
+ */
+class TfliteModel {
+    // Builtin operators (BuiltinOperator in schema.fbs)
+    static final int FULLY_CONNECTED = 9;
+    static final int LOGISTIC = 14;
+    static final int RELU = 19;
+    static final int RELU6 = 21;
+    static final int RESHAPE = 22;
+    static final int TANH = 28;
+
+    // Tensor types (TensorType in schema.fbs)
+    static final int FLOAT32 = 0;
+    static final int INT32 = 2;
+    static final int UINT8 = 3;
+    static final int INT8 = 9;
+
+    // Fused activations (ActivationFunctionType in schema.fbs)
+    static final int ACTIVATION_NONE = 0;
+    static final int ACTIVATION_RELU = 1;
+    static final int ACTIVATION_RELU6 = 3;
+    static final int ACTIVATION_TANH = 4;
+
+    // Field indexes of the tables in schema.fbs
+    private static final int MODEL_OPERATOR_CODES = 1;
+    private static final int MODEL_SUBGRAPHS = 2;
+    private static final int MODEL_BUFFERS = 4;
+    private static final int OPERATOR_CODE_DEPRECATED_BUILTIN_CODE = 0;
+    private static final int OPERATOR_CODE_BUILTIN_CODE = 3;
+    private static final int SUBGRAPH_TENSORS = 0;
+    private static final int SUBGRAPH_INPUTS = 1;
+    private static final int SUBGRAPH_OUTPUTS = 2;
+    private static final int SUBGRAPH_OPERATORS = 3;
+    private static final int TENSOR_SHAPE = 0;
+    private static final int TENSOR_TYPE = 1;
+    private static final int TENSOR_BUFFER = 2;
+    private static final int TENSOR_NAME = 3;
+    private static final int TENSOR_QUANTIZATION = 4;
+    private static final int QUANTIZATION_SCALE = 2;
+    private static final int QUANTIZATION_ZERO_POINT = 3;
+    private static final int QUANTIZATION_DIMENSION = 6;
+    private static final int OPERATOR_OPCODE_INDEX = 0;
+    private static final int OPERATOR_INPUTS = 1;
+    private static final int OPERATOR_OUTPUTS = 2;
+    private static final int OPERATOR_BUILTIN_OPTIONS = 4;
+    private static final int FULLY_CONNECTED_OPTIONS_ACTIVATION = 0;
+    private static final int BUFFER_DATA = 0;
+    private static final int BUFFER_OFFSET = 1;
+    private static final int BUFFER_SIZE = 2;
+
+    private final ByteBuffer buffer;
+    private final int model;
+    private final int subgraph;
+
+    /**
+     * @param model Contents of a .tflite file, e.g. memory-mapped. Not modified.
+     * @throws IllegalArgumentException If it is not a TensorFlow Lite model.
+     */
+    TfliteModel(ByteBuffer model) {
+        buffer = model.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.capacity() < 8 || buffer.get(4) != 'T' || buffer.get(5) != 'F' || buffer.get(6) != 'L') {
+            throw new IllegalArgumentException("Not a TensorFlow Lite model");
+        }
+        this.model = indirect(0);
+        int subgraphs = field(this.model, MODEL_SUBGRAPHS);
+        if (subgraphs == 0 || length(subgraphs) == 0) {
+            throw new IllegalArgumentException("Model without subgraphs");
+        }
+        subgraph = tableElement(subgraphs, 0);
+    }
+
+    int getInputTensor() {
+        return intElement(field(subgraph, SUBGRAPH_INPUTS), 0);
+    }
+
+    int getOutputTensor() {
+        return intElement(field(subgraph, SUBGRAPH_OUTPUTS), 0);
+    }
+
+    int getInputCount() {
+        return length(field(subgraph, SUBGRAPH_INPUTS));
+    }
+
+    int getOutputCount() {
+        return length(field(subgraph, SUBGRAPH_OUTPUTS));
+    }
+
+    int getOperatorCount() {
+        return length(field(subgraph, SUBGRAPH_OPERATORS));
+    }
+
+    /**
+     * @return Builtin operator code, e.g. {@link #FULLY_CONNECTED}.
+     */
+    int getOperatorCode(int operator) {
+        int opcodeIndex = scalar(operator(operator), OPERATOR_OPCODE_INDEX, 0);
+        int code = tableElement(field(model, MODEL_OPERATOR_CODES), opcodeIndex);
+        // Codes above 127 are only in the newer field, the older one is kept for old readers
+        int deprecated = scalarPosition(code, OPERATOR_CODE_DEPRECATED_BUILTIN_CODE);
+        return Math.max(deprecated == 0 ? 0 : buffer.get(deprecated), scalar(code, OPERATOR_CODE_BUILTIN_CODE, 0));
+    }
+
+    int[] getOperatorInputs(int operator) {
+        return ints(field(operator(operator), OPERATOR_INPUTS));
+    }
+
+    int[] getOperatorOutputs(int operator) {
+        return ints(field(operator(operator), OPERATOR_OUTPUTS));
+    }
+
+    /**
+     * @return Fused activation of a fully connected operator, e.g. {@link #ACTIVATION_RELU}.
+     */
+    int getFusedActivation(int operator) {
+        int options = field(operator(operator), OPERATOR_BUILTIN_OPTIONS);
+        if (options == 0) {
+            return ACTIVATION_NONE;
+        }
+        int position = scalarPosition(options, FULLY_CONNECTED_OPTIONS_ACTIVATION);
+        return position == 0 ? ACTIVATION_NONE : buffer.get(position);
+    }
+
+    int[] getShape(int tensor) {
+        return ints(field(tensor(tensor), TENSOR_SHAPE));
+    }
+
+    /**
+     * @return Tensor type, e.g. {@link #FLOAT32}.
+     */
+    int getType(int tensor) {
+        int position = scalarPosition(tensor(tensor), TENSOR_TYPE);
+        return position == 0 ? FLOAT32 : buffer.get(position);
+    }
+
+    String getName(int tensor) {
+        int name = field(tensor(tensor), TENSOR_NAME);
+        if (name == 0) {
+            return "#" + tensor;
+        }
+        byte[] bytes = new byte[length(name)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(name + 4 + i);
+        }
+        return new String(bytes, GlyphDataset.UTF_8);
+    }
+
+    /**
+     * @return Quantization scales, one per tensor or one per channel. Empty if the tensor is not quantized.
+     */
+    float[] getScales(int tensor) {
+        int quantization = field(tensor(tensor), TENSOR_QUANTIZATION);
+        int scales = quantization == 0 ? 0 : field(quantization, QUANTIZATION_SCALE);
+        float[] result = new float[scales == 0 ? 0 : length(scales)];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = buffer.getFloat(scales + 4 + 4 * i);
+        }
+        return result;
+    }
+
+    /**
+     * @return Zero points in the same order as {@link #getScales(int)}.
+     */
+    int[] getZeroPoints(int tensor) {
+        int quantization = field(tensor(tensor), TENSOR_QUANTIZATION);
+        int zeroPoints = quantization == 0 ? 0 : field(quantization, QUANTIZATION_ZERO_POINT);
+        int[] result = new int[zeroPoints == 0 ? 0 : length(zeroPoints)];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (int) buffer.getLong(zeroPoints + 4 + 8 * i);
+        }
+        return result;
+    }
+
+    /**
+     * @return Dimension of the per-channel scales.
+     */
+    int getQuantizedDimension(int tensor) {
+        int quantization = field(tensor(tensor), TENSOR_QUANTIZATION);
+        return quantization == 0 ? 0 : scalar(quantization, QUANTIZATION_DIMENSION, 0);
+    }
+
+    /**
+     * @return Whether the tensor has constant data (weights, biases, shapes).
+     */
+    boolean isConstant(int tensor) {
+        return dataSize(tensor) > 0;
+    }
+
+    /**
+     * @return Constant data of a float tensor.
+     */
+    float[] getFloats(int tensor) {
+        checkType(tensor, FLOAT32);
+        float[] result = new float[dataSize(tensor) / 4];
+        int position = dataPosition(tensor);
+        for (int i = 0; i < result.length; i++) {
+            result[i] = buffer.getFloat(position + 4 * i);
+        }
+        return result;
+    }
+
+    /**
+     * @return Constant data of an 8-bit tensor, raw (also for uint8).
+     */
+    byte[] getBytes(int tensor) {
+        byte[] result = new byte[dataSize(tensor)];
+        ByteBuffer data = buffer.duplicate();
+        data.position(dataPosition(tensor));
+        data.get(result);
+        return result;
+    }
+
+    private void checkType(int tensor, int type) {
+        if (getType(tensor) != type) {
+            throw new IllegalArgumentException("Tensor " + getName(tensor) + " has type " + getType(tensor)
+                    + ", expected " + type);
+        }
+    }
+
+    private int operator(int index) {
+        return tableElement(field(subgraph, SUBGRAPH_OPERATORS), index);
+    }
+
+    private int tensor(int index) {
+        return tableElement(field(subgraph, SUBGRAPH_TENSORS), index);
+    }
+
+    private int dataBuffer(int tensor) {
+        return tableElement(field(model, MODEL_BUFFERS), scalar(tensor(tensor), TENSOR_BUFFER, 0));
+    }
+
+    private int dataSize(int tensor) {
+        int dataBuffer = dataBuffer(tensor);
+        int data = field(dataBuffer, BUFFER_DATA);
+        if (data != 0) {
+            return length(data);
+        }
+        // Models over 2 GB keep the data after the flatbuffer
+        int size = scalarPosition(dataBuffer, BUFFER_SIZE);
+        return size == 0 ? 0 : (int) buffer.getLong(size);
+    }
+
+    /**
+     * @throws IllegalArgumentException If the data is not in the file.
+     */
+    private int dataPosition(int tensor) {
+        int dataBuffer = dataBuffer(tensor);
+        int data = field(dataBuffer, BUFFER_DATA);
+        long position;
+        if (data != 0) {
+            position = data + 4;
+        } else {
+            int offset = scalarPosition(dataBuffer, BUFFER_OFFSET);
+            position = offset == 0 ? 0 : buffer.getLong(offset);
+        }
+        if (position <= 0 || position + dataSize(tensor) > buffer.capacity()) {
+            throw new IllegalArgumentException("Corrupted model: data of tensor " + getName(tensor) + " is not in the file");
+        }
+        return (int) position;
+    }
+
+    // Flatbuffer primitives. Positions are absolute, 0 means absent.
+
+    /**
+     * @return Position of the table, vector or string referenced by the offset at the given position.
+     */
+    private int indirect(int position) {
+        return position + buffer.getInt(position);
+    }
+
+    /**
+     * @return Position of the field in the table or 0 if the field is absent (has its default value).
+     */
+    private int scalarPosition(int table, int field) {
+        int vtable = table - buffer.getInt(table);
+        int entry = 4 + 2 * field;
+        if (entry >= (buffer.getShort(vtable) & 0xffff)) {
+            return 0;
+        }
+        int offset = buffer.getShort(vtable + entry) & 0xffff;
+        return offset == 0 ? 0 : table + offset;
+    }
+
+    private int scalar(int table, int field, int defaultValue) {
+        int position = scalarPosition(table, field);
+        return position == 0 ? defaultValue : buffer.getInt(position);
+    }
+
+    /**
+     * @return Position of the table, vector or string in the field or 0 if it is absent.
+     */
+    private int field(int table, int field) {
+        int position = scalarPosition(table, field);
+        return position == 0 ? 0 : indirect(position);
+    }
+
+    private int length(int vector) {
+        return buffer.getInt(vector);
+    }
+
+    private int tableElement(int vector, int index) {
+        if (vector == 0) {
+            throw new IllegalArgumentException("Corrupted model: missing vector of tables");
+        }
+        if (index < 0 || index >= length(vector)) {
+            throw new IllegalArgumentException("Corrupted model: index " + index + " out of " + length(vector));
+        }
+        return indirect(vector + 4 + 4 * index);
+    }
+
+    private int intElement(int vector, int index) {
+        return buffer.getInt(vector + 4 + 4 * index);
+    }
+
+    private int[] ints(int vector) {
+        int[] result = new int[vector == 0 ? 0 : length(vector)];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = intElement(vector, i);
+        }
+        return result;
+    }
+}
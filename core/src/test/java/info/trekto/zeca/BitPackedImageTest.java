@@ -0,0 +1,54 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static info.trekto.zeca.PreprocessingWorkspace.TOTAL_PIXELS;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class BitPackedImageTest {
+
+    @Test
+    public void bitPackedPipelineMatchesWorkspace() throws IOException {
+        PreprocessingWorkspace workspace = new PreprocessingWorkspace();
+        BitPackedImage packed = new BitPackedImage();
+        BitPackedImage expected = new BitPackedImage();
+        for (SampleImage sample : SampleImage.loadAll()) {
+            workspace.convertToBitPackedImage(sample.argb, sample.width, sample.height, packed);
+            workspace.convertToBlackAndWhiteCenteredImage(sample.argb, sample.width, sample.height);
+            workspace.pack(expected);
+            assertEquals(sample.name, expected, packed);
+        }
+    }
+
+    @Test
+    public void unpackRestoresPackedPixels() throws IOException {
+        PreprocessingWorkspace workspace = new PreprocessingWorkspace();
+        BitPackedImage packed = new BitPackedImage();
+        int[] unpacked = new int[TOTAL_PIXELS];
+        for (SampleImage sample : SampleImage.loadAll()) {
+            int[] centered = workspace.convertToBlackAndWhiteCenteredImage(sample.argb, sample.width, sample.height);
+            packed.pack(centered);
+            packed.unpack(unpacked);
+            assertArrayEquals(sample.name, centered, unpacked);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+import static info.trekto.zeca.PreprocessingWorkspace.IMAGE_H;
+import static info.trekto.zeca.PreprocessingWorkspace.IMAGE_W;
+import static info.trekto.zeca.PreprocessingWorkspace.TOTAL_PIXELS;
+
+/**
+ * The original bitmap preprocessing ({@code ImagePreprocessor.convertToBlackAndWhiteCenteredImage} before
+ * {@link PreprocessingWorkspace}) ported step by step to ARGB arrays, as the reference for the tests.<p>
+ * Every step creates a new image like the bitmap version did. The Android drawing calls are replaced by
+ * what they do on an opaque ARGB_8888 bitmap:
+ * <ul>
+ * <li>ColorMatrix.setSaturation(0) sets every channel to 0.213 R + 0.715 G + 0.072 B.</li>
+ * <li>Bitmap.createScaledBitmap(..., true) samples every channel bilinearly at the pixel centres.</li>
+ * <li>Canvas.drawBitmap without antialiasing takes the nearest source pixel for each destination pixel centre.</li>
+ * </ul>
+ */
+class BitmapReference {
+    private static final int BLACK = 0xff000000;
+    private static final int WHITE = 0xffffffff;
+
+    /**
+     * Stands for android.graphics.Bitmap.
+     */
+    private static class Image {
+        final int width;
+        final int height;
+        final int[] pixels;
+
+        Image(int width, int height) {
+            this.width = width;
+            this.height = height;
+            this.pixels = new int[width * height];
+        }
+
+        int getPixel(int x, int y) {
+            return pixels[y * width + x];
+        }
+    }
+
+    /**
+     * @param argb   Pixels of the original image in row-major order.
+     * @param width  Width of the original image.
+     * @param height Height of the original image.
+     * @return Black and white image (values 0 or 255) centered within a fixed frame in row-major order.
+     */
+    static int[] convertToBlackAndWhiteCenteredImage(int[] argb, int width, int height) {
+        Image original = new Image(width, height);
+        System.arraycopy(argb, 0, original.pixels, 0, argb.length);
+
+        Image tempBitmap = convertToMonochrome(original);
+        tempBitmap = scaleBitmap(tempBitmap, IMAGE_W);
+        convertToBlackAndWhite(tempBitmap, findBlackAndWhiteAverage(tempBitmap));
+        tempBitmap = addFrame(tempBitmap, IMAGE_W, IMAGE_H);
+        tempBitmap = centerImage(tempBitmap);
+
+        int[] values = new int[TOTAL_PIXELS];
+        for (int i = 0; i < TOTAL_PIXELS; i++) {
+            values[i] = red(tempBitmap.pixels[i]);
+        }
+        return values;
+    }
+
+    private static Image centerImage(Image bitmap) {
+        int totalMassX = 0;
+        int top = IMAGE_H;
+        int bottom = 0;
+        int blackPixelsCount = 0;
+        int totalBlackPixelsMass = 0;
+        float meanColorValue = 0;
+
+        int[] pixels = bitmap.pixels;
+
+        for (int x = 0; x < IMAGE_W; x++) {
+            for (int y = 0; y < IMAGE_H; y++) {
+                meanColorValue += red(pixels[y * IMAGE_W + x]);
+            }
+        }
+
+        meanColorValue /= (float) TOTAL_PIXELS;
+
+        for (int x = 0; x < IMAGE_W; x++) {
+            for (int y = 0; y < IMAGE_H; y++) {
+                int r = red(pixels[y * IMAGE_W + x]);
+
+                // If dark enough
+                if (r < meanColorValue) {
+                    int mass = (255 - r);
+                    totalMassX += mass * x;
+                    totalBlackPixelsMass += mass;
+                    blackPixelsCount++;
+
+                    if (y < top) top = y;
+                    if (y > bottom) bottom = y;
+                }
+            }
+        }
+
+        float meanBlackPixelMass = totalBlackPixelsMass / (float) blackPixelsCount;
+        int centerWeightX = Math.round(totalMassX / meanBlackPixelMass / (float) blackPixelsCount);
+        int centerFormY = Math.round(top + (bottom - top) / 2f);
+
+        Image centeredBitmap = new Image(IMAGE_W, IMAGE_H);
+        int diffX = IMAGE_W / 2 - centerWeightX;
+        int diffY = IMAGE_H / 2 - centerFormY;
+        for (int x = 0; x < IMAGE_W; x++) {
+            for (int y = 0; y < IMAGE_H; y++) {
+                int oldX = x - diffX;
+                int oldY = y - diffY;
+
+                if (oldX < 0 || oldX >= IMAGE_W || oldY < 0 || oldY >= IMAGE_H) {
+                    centeredBitmap.pixels[y * IMAGE_W + x] = WHITE;
+                } else {
+                    centeredBitmap.pixels[y * IMAGE_W + x] = pixels[oldY * IMAGE_W + oldX];
+                }
+            }
+        }
+        return centeredBitmap;
+    }
+
+    private static int findBlackAndWhiteAverage(Image bitmap) {
+        long total = 0;
+
+        for (int pixel : bitmap.pixels) {
+            total += pixel & 0xff;
+        }
+
+        return Math.round(total / (float) bitmap.pixels.length);
+    }
+
+    private static void convertToBlackAndWhite(Image bitmap, int threshold) {
+        int[] pixels = bitmap.pixels;
+        for (int i = 0; i < pixels.length; i++) {
+            int lowestBit = pixels[i] & 0xff;
+            if (lowestBit < threshold)
+                pixels[i] = BLACK;
+            else
+                pixels[i] = WHITE;
+        }
+    }
+
+    private static Image convertToMonochrome(Image bitmap) {
+        Image monochromeBitmap = new Image(bitmap.width, bitmap.height);
+        for (int i = 0; i < bitmap.pixels.length; i++) {
+            int pixel = bitmap.pixels[i];
+            float grey = 0.213f * red(pixel) + 0.715f * green(pixel) + 0.072f * blue(pixel);
+            int value = Math.min(255, Math.round(grey));
+            monochromeBitmap.pixels[i] = argb(value, value, value);
+        }
+        return monochromeBitmap;
+    }
+
+    private static Image addFrame(Image bitmap, int finalWidth, int finalHeight) {
+        Image bitmapWithBorder = new Image(finalWidth, finalHeight);
+        float left = (finalWidth - bitmap.width) / 2f;
+        float top = (finalHeight - bitmap.height) / 2f;
+        for (int y = 0; y < finalHeight; y++) {
+            for (int x = 0; x < finalWidth; x++) {
+                int sourceX = (int) Math.floor(x + 0.5f - left);
+                int sourceY = (int) Math.floor(y + 0.5f - top);
+                boolean inside = sourceX >= 0 && sourceX < bitmap.width && sourceY >= 0 && sourceY < bitmap.height;
+                bitmapWithBorder.pixels[y * finalWidth + x] = inside ? bitmap.getPixel(sourceX, sourceY) : WHITE;
+            }
+        }
+        return bitmapWithBorder;
+    }
+
+    private static Image scaleBitmap(Image bitmap, int maxLengthPixels) {
+        float scaleFactor = Math.max(
+                bitmap.width / (float) maxLengthPixels,
+                bitmap.height / (float) maxLengthPixels);
+
+        Image resizedBitmap = new Image((int) (bitmap.width / scaleFactor), (int) (bitmap.height / scaleFactor));
+        float stepX = bitmap.width / (float) resizedBitmap.width;
+        float stepY = bitmap.height / (float) resizedBitmap.height;
+        for (int y = 0; y < resizedBitmap.height; y++) {
+            float sourceY = Math.max(0, Math.min(bitmap.height - 1, (y + 0.5f) * stepY - 0.5f));
+            int y0 = (int) sourceY;
+            int y1 = Math.min(y0 + 1, bitmap.height - 1);
+            for (int x = 0; x < resizedBitmap.width; x++) {
+                float sourceX = Math.max(0, Math.min(bitmap.width - 1, (x + 0.5f) * stepX - 0.5f));
+                int x0 = (int) sourceX;
+                int x1 = Math.min(x0 + 1, bitmap.width - 1);
+                int[] corners = {bitmap.getPixel(x0, y0), bitmap.getPixel(x1, y0),
+                        bitmap.getPixel(x0, y1), bitmap.getPixel(x1, y1)};
+                resizedBitmap.pixels[y * resizedBitmap.width + x] = argb(
+                        bilinear(corners, 16, sourceX - x0, sourceY - y0),
+                        bilinear(corners, 8, sourceX - x0, sourceY - y0),
+                        bilinear(corners, 0, sourceX - x0, sourceY - y0));
+            }
+        }
+        return resizedBitmap;
+    }
+
+    private static int bilinear(int[] corners, int shift, float weightX, float weightY) {
+        float topLeft = (corners[0] >> shift) & 0xff;
+        float topRight = (corners[1] >> shift) & 0xff;
+        float bottomLeft = (corners[2] >> shift) & 0xff;
+        float bottomRight = (corners[3] >> shift) & 0xff;
+        float top = topLeft + (topRight - topLeft) * weightX;
+        float bottom = bottomLeft + (bottomRight - bottomLeft) * weightX;
+        return Math.round(top + (bottom - top) * weightY);
+    }
+
+    private static int red(int pixel) {
+        return (pixel >> 16) & 0xff;
+    }
+
+    private static int green(int pixel) {
+        return (pixel >> 8) & 0xff;
+    }
+
+    private static int blue(int pixel) {
+        return pixel & 0xff;
+    }
+
+    private static int argb(int red, int green, int blue) {
+        return 0xff000000 | (red << 16) | (green << 8) | blue;
+    }
+}
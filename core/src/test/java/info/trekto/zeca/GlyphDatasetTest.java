@@ -0,0 +1,65 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class GlyphDatasetTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsWhatWasWritten() throws IOException {
+        PreprocessingWorkspace workspace = new PreprocessingWorkspace();
+        GlyphDatasetWriter writer = new GlyphDatasetWriter();
+        List<SampleImage> samples = SampleImage.loadAll();
+        List<BitPackedImage> images = new ArrayList<>();
+        for (SampleImage sample : samples) {
+            BitPackedImage image = new BitPackedImage();
+            workspace.convertToBitPackedImage(sample.argb, sample.width, sample.height, image);
+            images.add(image);
+            writer.add(image, sample.expectedDigit(), sample.name.charAt(3), sample.name);
+        }
+        File file = folder.newFile("samples.zds");
+        writer.write(file);
+
+        GlyphDataset dataset = GlyphDataset.open(file);
+        assertEquals(samples.size(), dataset.size());
+        BitPackedImage read = new BitPackedImage();
+        for (int i = 0; i < samples.size(); i++) {
+            dataset.read(i, read);
+            assertEquals(images.get(i), read);
+            assertEquals(samples.get(i).expectedDigit(), dataset.getExpected(i));
+            assertEquals(samples.get(i).name.charAt(3), dataset.getActual(i));
+            assertEquals(samples.get(i).name, dataset.getSource(i));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        GlyphDataset.open(new File(SampleImage.assets(), SampleImage.loadAll().get(0).name));
+    }
+}
@@ -0,0 +1,144 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static info.trekto.zeca.PreprocessingWorkspace.BLACK;
+import static info.trekto.zeca.PreprocessingWorkspace.IMAGE_W;
+import static info.trekto.zeca.PreprocessingWorkspace.TOTAL_PIXELS;
+import static info.trekto.zeca.PreprocessingWorkspace.WHITE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class HoleClassifierTest {
+
+    /**
+     * With the default thresholds the samples which are not decided go to the model, but a decided one must be right.
+     */
+    @Test
+    public void decidesSampleImagesCorrectly() throws IOException {
+        PreprocessingWorkspace workspace = new PreprocessingWorkspace();
+        BitPackedImage packed = new BitPackedImage();
+        HoleClassifier classifier = new HoleClassifier();
+        for (SampleImage sample : SampleImage.loadAll()) {
+            workspace.convertToBitPackedImage(sample.argb, sample.width, sample.height, packed);
+            Classification classification = classifier.classify(packed);
+            if (classification != null) {
+                assertEquals(sample.name, sample.expectedDigit(), classification.recognizedDigit);
+            }
+        }
+    }
+
+    @Test
+    public void findsHolesBehindDiagonalWalls() {
+        // Two diamonds drawn with one pixel thick diagonal lines. White pixels touch the outside only
+        // by corners, so the insides are holes.
+        Classification classification = classify(twoDiamonds());
+
+        assertNotNull(classification);
+        assertEquals('8', classification.recognizedDigit);
+    }
+
+    @Test
+    public void findsSlashedZero() {
+        Classification classification = classify(slashedZero());
+
+        assertNotNull(classification);
+        assertEquals('0', classification.recognizedDigit);
+    }
+
+    @Test
+    public void reusesScratchBetweenImages() {
+        HoleClassifier classifier = new HoleClassifier(HoleClassifier.DEFAULT_MIN_HOLE_AREA, 0);
+        BitPackedImage zero = pack(slashedZero());
+        BitPackedImage eight = pack(twoDiamonds());
+
+        assertEquals('0', classifier.classify(zero).recognizedDigit);
+        assertEquals('8', classifier.classify(eight).recognizedDigit);
+        assertEquals('0', classifier.classify(zero).recognizedDigit);
+    }
+
+    @Test
+    public void countsOnlySkippedModelRunsAsFastPath() {
+        HoleClassifier classifier = new HoleClassifier(HoleClassifier.DEFAULT_MIN_HOLE_AREA, 0);
+        BitPackedImage eight = pack(twoDiamonds());
+
+        // Validated: the model ran anyway
+        Classification fast = classifier.classify(eight);
+        classifier.recordAgreement(fast, new Classification('8', 0.99f));
+        // Trusted: the model was skipped
+        classifier.classify(eight);
+        classifier.recordSkipped();
+
+        assertEquals(1, classifier.getDecidedRate(), 0);
+        assertEquals(0.5f, classifier.getFastPathRate(), 0);
+        assertEquals(1, classifier.getAgreementRate(), 0);
+    }
+
+    private static Classification classify(int[] pixels) {
+        return new HoleClassifier(HoleClassifier.DEFAULT_MIN_HOLE_AREA, 0).classify(pack(pixels));
+    }
+
+    private static BitPackedImage pack(int[] pixels) {
+        BitPackedImage image = new BitPackedImage();
+        image.pack(pixels);
+        return image;
+    }
+
+    private static int[] twoDiamonds() {
+        int[] pixels = new int[TOTAL_PIXELS];
+        Arrays.fill(pixels, WHITE);
+        diamond(pixels, 15, 9, 6);
+        diamond(pixels, 15, 22, 6);
+        return pixels;
+    }
+
+    private static int[] slashedZero() {
+        int[] pixels = new int[TOTAL_PIXELS];
+        Arrays.fill(pixels, WHITE);
+        rectangle(pixels, 9, 4, 14, 24);
+        // The slash goes up to the right
+        for (int y = 5; y < 27; y++) {
+            int x = 21 - (y - 5) * 11 / 21;
+            pixels[y * IMAGE_W + x] = BLACK;
+            pixels[y * IMAGE_W + x + 1] = BLACK;
+        }
+        return pixels;
+    }
+
+    private static void diamond(int[] pixels, int centerX, int centerY, int radius) {
+        for (int y = centerY - radius; y <= centerY + radius; y++) {
+            int dx = radius - Math.abs(y - centerY);
+            pixels[y * IMAGE_W + centerX - dx] = BLACK;
+            pixels[y * IMAGE_W + centerX + dx] = BLACK;
+        }
+    }
+
+    private static void rectangle(int[] pixels, int left, int top, int width, int height) {
+        for (int y = top; y < top + height; y++) {
+            for (int x = left; x < left + width; x++) {
+                if (y == top || y == top + height - 1 || x == left || x == left + width - 1) {
+                    pixels[y * IMAGE_W + x] = BLACK;
+                }
+            }
+        }
+    }
+}
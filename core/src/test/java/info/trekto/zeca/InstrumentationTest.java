@@ -0,0 +1,57 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class InstrumentationTest {
+
+    @Test
+    public void disabledStagesAreNotRecorded() {
+        Instrumentation instrumentation = new Instrumentation();
+        long start = instrumentation.begin(PipelineStage.DECODE);
+        assertEquals(Instrumentation.NOT_STARTED, start);
+        instrumentation.end(PipelineStage.DECODE, start, 100);
+        assertEquals(0, instrumentation.snapshot().get(PipelineStage.DECODE).count);
+    }
+
+    @Test
+    public void endClosesTheTraceSectionOfBegin() {
+        final int[] openSections = {0};
+        Instrumentation instrumentation = new Instrumentation();
+        instrumentation.setEnabled(true);
+        instrumentation.setTracer(new Instrumentation.Tracer() {
+            @Override
+            public void beginSection(String name) {
+                openSections[0]++;
+            }
+
+            @Override
+            public void endSection() {
+                openSections[0]--;
+            }
+        });
+
+        long start = instrumentation.begin(PipelineStage.DECODE);
+        assertEquals(1, openSections[0]);
+        instrumentation.end(PipelineStage.DECODE, start, 100);
+        assertEquals(0, openSections[0]);
+        assertEquals(1, instrumentation.snapshot().get(PipelineStage.DECODE).count);
+    }
+}
@@ -0,0 +1,156 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.List;
+
+import static info.trekto.zeca.PreprocessingWorkspace.FLOAT_BYTES;
+import static info.trekto.zeca.PreprocessingWorkspace.TOTAL_PIXELS;
+import static java.nio.ByteOrder.LITTLE_ENDIAN;
+import static java.nio.ByteOrder.nativeOrder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JavaNetworkTest {
+    private static final String MODEL = "2020-Mar-31_20-03-28_LATENCY_antialiasing_B-W.tflite";
+
+    // Outputs of TensorFlow Lite 2.4.1 (CPU, one thread) for the sample images in the order of their names
+    private static final float[] TFLITE_OUTPUTS = {
+            1.5121698E-4f, 0.16974181f, 0.16830915f, 0.05903998f, 0.9350872f, 0.8873074f, 0.9849956f, 0.984162f
+    };
+    private static final float TOLERANCE = 1e-5f;
+
+    // Int8 weights of the first fully connected layer of the model
+    private static final int WEIGHTS_TENSOR = 4;
+
+    // Field indexes of the tables in schema.fbs
+    private static final int MODEL_SUBGRAPHS = 2;
+    private static final int MODEL_BUFFERS = 4;
+    private static final int SUBGRAPH_TENSORS = 0;
+    private static final int TENSOR_QUANTIZATION = 4;
+
+    @Test
+    public void matchesTfliteOutputs() throws IOException {
+        JavaNetwork network = new JavaNetwork(loadModel());
+        ByteBuffer input = preprocessSamples();
+        int count = TFLITE_OUTPUTS.length;
+
+        ByteBuffer output = ByteBuffer.allocateDirect(count * FLOAT_BYTES).order(nativeOrder());
+        for (int i = 0; i < count; i++) {
+            network.run(slice(input, i), output, 1);
+            assertEquals("Sample " + i, TFLITE_OUTPUTS[i], output.getFloat(0), TOLERANCE);
+        }
+
+        network.run(input, output, count);
+        for (int i = 0; i < count; i++) {
+            assertEquals("Sample " + i + " in a batch", TFLITE_OUTPUTS[i], output.getFloat(i * FLOAT_BYTES), TOLERANCE);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTruncatedModel() throws IOException {
+        ByteBuffer model = loadModel();
+        model.limit(model.capacity() / 2);
+        new JavaNetwork(model.slice());
+    }
+
+    @Test
+    public void rejectsQuantizedWeightsWithoutQuantization() throws IOException {
+        ByteBuffer model = loadModel();
+        removeField(model, tensor(model, WEIGHTS_TENSOR), TENSOR_QUANTIZATION);
+        assertRejected(model, "have no quantization parameters");
+    }
+
+    @Test
+    public void rejectsConstantTensorsWithoutBuffers() throws IOException {
+        ByteBuffer model = loadModel();
+        removeField(model, model.getInt(0), MODEL_BUFFERS);
+        assertRejected(model, "missing vector of tables");
+    }
+
+    private static void assertRejected(ByteBuffer model, String reason) {
+        try {
+            new JavaNetwork(model);
+            fail("Model accepted");
+        } catch (IllegalArgumentException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains(reason));
+        }
+    }
+
+    private static ByteBuffer loadModel() throws IOException {
+        return ByteBuffer.wrap(Files.readAllBytes(new File(SampleImage.assets(), MODEL).toPath())).order(LITTLE_ENDIAN);
+    }
+
+    // Just enough of the flatbuffer format (schema.fbs) to remove a field of a table in the model
+
+    /**
+     * @return Position of a tensor table of the first subgraph.
+     */
+    private static int tensor(ByteBuffer model, int index) {
+        int subgraphs = indirect(model, fieldPosition(model, model.getInt(0), MODEL_SUBGRAPHS));
+        int subgraph = indirect(model, subgraphs + 4);
+        int tensors = indirect(model, fieldPosition(model, subgraph, SUBGRAPH_TENSORS));
+        return indirect(model, tensors + 4 + 4 * index);
+    }
+
+    /**
+     * The field gets its default value (absent). Tables with the same layout share it, so they lose the field too.
+     */
+    private static void removeField(ByteBuffer model, int table, int field) {
+        int vtable = table - model.getInt(table);
+        model.putShort(vtable + 4 + 2 * field, (short) 0);
+    }
+
+    private static int fieldPosition(ByteBuffer model, int table, int field) {
+        int vtable = table - model.getInt(table);
+        return table + model.getShort(vtable + 4 + 2 * field);
+    }
+
+    private static int indirect(ByteBuffer model, int position) {
+        return position + model.getInt(position);
+    }
+
+    /**
+     * @return The sample images preprocessed and normalized one after another.
+     */
+    private static ByteBuffer preprocessSamples() throws IOException {
+        List<SampleImage> samples = SampleImage.loadAll();
+        assertEquals(TFLITE_OUTPUTS.length, samples.size());
+        ByteBuffer input = ByteBuffer.allocateDirect(samples.size() * TOTAL_PIXELS * FLOAT_BYTES).order(nativeOrder());
+        PreprocessingWorkspace workspace = new PreprocessingWorkspace();
+        for (int i = 0; i < samples.size(); i++) {
+            SampleImage sample = samples.get(i);
+            workspace.convertToBlackAndWhiteCenteredImage(sample.argb, sample.width, sample.height);
+            workspace.writeNormalized(input, i * TOTAL_PIXELS * FLOAT_BYTES);
+        }
+        return input;
+    }
+
+    private static ByteBuffer slice(ByteBuffer samples, int index) {
+        ByteBuffer view = samples.duplicate();
+        view.position(index * TOTAL_PIXELS * FLOAT_BYTES);
+        view.limit((index + 1) * TOTAL_PIXELS * FLOAT_BYTES);
+        return view.slice().order(nativeOrder());
+    }
+}
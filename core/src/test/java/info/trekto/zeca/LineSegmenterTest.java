@@ -0,0 +1,87 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class LineSegmenterTest {
+    private static final int BLACK = 0xff000000;
+    private static final int WHITE = 0xffffffff;
+
+    @Test
+    public void findsGlyphsFromLeftToRight() {
+        int width = 40;
+        int height = 12;
+        int[] argb = new int[width * height];
+        Arrays.fill(argb, WHITE);
+        // An "8"-like glyph made of two parts touching diagonally, a bar and a box
+        fill(argb, width, 2, 2, 4, 4);
+        fill(argb, width, 6, 6, 4, 4);
+        fill(argb, width, 16, 1, 2, 10);
+        fill(argb, width, 24, 3, 6, 6);
+        // Noise below the minimum area
+        fill(argb, width, 35, 5, 1, 1);
+
+        List<Glyph> glyphs = new LineSegmenter().segment(argb, width, height);
+
+        assertEquals(3, glyphs.size());
+        assertGlyph(glyphs.get(0), 2, 2, 8, 8);
+        assertGlyph(glyphs.get(1), 16, 1, 2, 10);
+        assertGlyph(glyphs.get(2), 24, 3, 6, 6);
+    }
+
+    @Test
+    public void reusesBuffersForShorterLines() {
+        int width = 100;
+        int height = 6;
+        int[] longLine = new int[width * height];
+        Arrays.fill(longLine, WHITE);
+        for (int x = 0; x < width; x += 5) {
+            fill(longLine, width, x, 1, 3, 4);
+        }
+        int[] shortLine = new int[width * height];
+        Arrays.fill(shortLine, WHITE);
+        fill(shortLine, width, 40, 1, 3, 4);
+        fill(shortLine, width, 10, 0, 4, 6);
+
+        LineSegmenter segmenter = new LineSegmenter();
+        assertEquals(20, segmenter.segment(longLine, width, height).size());
+        List<Glyph> glyphs = segmenter.segment(shortLine, width, height);
+
+        assertEquals(2, glyphs.size());
+        assertGlyph(glyphs.get(0), 10, 0, 4, 6);
+        assertGlyph(glyphs.get(1), 40, 1, 3, 4);
+    }
+
+    private static void fill(int[] argb, int width, int left, int top, int w, int h) {
+        for (int y = top; y < top + h; y++) {
+            Arrays.fill(argb, y * width + left, y * width + left + w, BLACK);
+        }
+    }
+
+    private static void assertGlyph(Glyph glyph, int left, int top, int width, int height) {
+        assertEquals(glyph.toString(), left, glyph.left);
+        assertEquals(glyph.toString(), top, glyph.top);
+        assertEquals(glyph.toString(), width, glyph.width);
+        assertEquals(glyph.toString(), height, glyph.height);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ModelSlotTest {
+
+    /**
+     * Records the closed models.
+     */
+    private static class RecordingSlot extends ModelSlot<String> {
+        final List<String> closed = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        protected void close(String name, String model) {
+            closed.add(model);
+        }
+    }
+
+    @Test
+    public void inFlightUsersKeepOldModelUntilReleased() {
+        RecordingSlot slot = new RecordingSlot();
+        slot.activate("old", "old pool");
+        ModelSlot.Lease<String> running = slot.acquire();
+
+        slot.activate("new", "new pool");
+        assertEquals("old pool", running.model);
+        assertTrue(slot.closed.isEmpty());
+
+        ModelSlot.Lease<String> next = slot.acquire();
+        assertEquals("new", next.name);
+        next.release();
+        assertTrue(slot.closed.isEmpty());
+
+        running.release();
+        assertEquals(Arrays.asList("old pool"), slot.closed);
+    }
+
+    @Test
+    public void closesActiveModelWhenReleased() {
+        RecordingSlot slot = new RecordingSlot();
+        slot.activate("model", "pool");
+        ModelSlot.Lease<String> running = slot.acquire();
+
+        slot.close();
+        assertNull(slot.acquire());
+        assertTrue(slot.closed.isEmpty());
+
+        running.release();
+        assertEquals(Arrays.asList("pool"), slot.closed);
+    }
+
+    @Test
+    public void closesModelActivatedAfterClose() {
+        RecordingSlot slot = new RecordingSlot();
+        slot.close();
+
+        assertFalse(slot.activate("late", "late pool"));
+        assertNull(slot.getActiveName());
+        assertEquals(Arrays.asList("late pool"), slot.closed);
+    }
+
+    @Test
+    public void neverGivesClosedModel() throws InterruptedException {
+        final RecordingSlot slot = new RecordingSlot();
+        final int models = 2000;
+        final AtomicBoolean usedClosed = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch start = new CountDownLatch(1);
+        slot.activate("0", "0");
+
+        Thread user = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    start.await();
+                    while (slot.getActiveName() != null) {
+                        ModelSlot.Lease<String> lease = slot.acquire();
+                        if (lease != null) {
+                            if (slot.closed.contains(lease.model)) {
+                                usedClosed.set(true);
+                            }
+                            lease.release();
+                        }
+                    }
+                } catch (Throwable tr) {
+                    failure.set(tr);
+                }
+            }
+        });
+        user.start();
+        start.countDown();
+        for (int i = 1; i < models; i++) {
+            slot.activate(String.valueOf(i), String.valueOf(i));
+        }
+        slot.close();
+        user.join();
+
+        assertNull(failure.get());
+        assertFalse(usedClosed.get());
+        assertEquals(models, slot.closed.size());
+    }
+}
@@ -0,0 +1,95 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import static info.trekto.zeca.PreprocessingWorkspace.IMAGE_H;
+import static info.trekto.zeca.PreprocessingWorkspace.IMAGE_W;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class PreprocessingWorkspaceTest {
+
+    /**
+     * The golden images (# black, . white) were recorded from {@link BitmapReference}.
+     */
+    @Test
+    public void matchesGoldenImages() throws IOException {
+        PreprocessingWorkspace workspace = new PreprocessingWorkspace();
+        for (SampleImage sample : SampleImage.loadAll()) {
+            int[] centered = workspace.convertToBlackAndWhiteCenteredImage(sample.argb, sample.width, sample.height);
+            assertEquals(sample.name, readGolden(sample.name.replace(".png", ".txt")), toText(centered));
+        }
+    }
+
+    @Test
+    public void matchesBitmapPipeline() throws IOException {
+        PreprocessingWorkspace workspace = new PreprocessingWorkspace();
+        BitPackedImage packed = new BitPackedImage();
+        int[] unpacked = new int[IMAGE_W * IMAGE_H];
+        for (SampleImage sample : SampleImage.loadAll()) {
+            int[] expected = BitmapReference.convertToBlackAndWhiteCenteredImage(sample.argb, sample.width, sample.height);
+            assertArrayEquals(sample.name, expected,
+                    workspace.convertToBlackAndWhiteCenteredImage(sample.argb, sample.width, sample.height));
+
+            workspace.convertToBitPackedImage(sample.argb, sample.width, sample.height, packed);
+            packed.unpack(unpacked);
+            assertArrayEquals(sample.name, expected, unpacked);
+        }
+    }
+
+    @Test
+    public void fusedPipelineMatchesStepByStep() throws IOException {
+        PreprocessingWorkspace fused = new PreprocessingWorkspace();
+        PreprocessingWorkspace stepByStep = new PreprocessingWorkspace();
+        for (SampleImage sample : SampleImage.loadAll()) {
+            assertArrayEquals(sample.name,
+                    stepByStep.convertToBlackAndWhiteCenteredImageStepByStep(sample.argb, sample.width, sample.height),
+                    fused.convertToBlackAndWhiteCenteredImage(sample.argb, sample.width, sample.height));
+        }
+    }
+
+    static String toText(int[] pixels) {
+        StringBuilder text = new StringBuilder();
+        for (int y = 0; y < IMAGE_H; y++) {
+            for (int x = 0; x < IMAGE_W; x++) {
+                text.append(pixels[y * IMAGE_W + x] == PreprocessingWorkspace.BLACK ? '#' : '.');
+            }
+            text.append('\n');
+        }
+        return text.toString();
+    }
+
+    private static String readGolden(String name) throws IOException {
+        InputStream inputStream = PreprocessingWorkspaceTest.class.getResourceAsStream("/golden/" + name);
+        assertNotNull("No golden image " + name, inputStream);
+        StringBuilder text = new StringBuilder();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"))) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                text.append(line).append('\n');
+            }
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,73 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static info.trekto.zeca.PreprocessingWorkspace.BLACK;
+import static info.trekto.zeca.PreprocessingWorkspace.TOTAL_PIXELS;
+import static info.trekto.zeca.PreprocessingWorkspace.WHITE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class ResultCacheTest {
+
+    @Test
+    public void keepsResultsOfEachModel() {
+        ResultCache cache = new ResultCache(4);
+        BitPackedImage image = image(10);
+        Classification eight = new Classification('8', 0.9f);
+        Classification zero = new Classification('0', 0.8f);
+
+        cache.put("old", image.copy(), eight);
+        assertNull(cache.get("new", image));
+        cache.put("new", image.copy(), zero);
+
+        assertSame(eight, cache.get("old", image));
+        assertSame(zero, cache.get("new", image));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        ResultCache cache = new ResultCache(2);
+        Classification classification = new Classification('8', 0.9f);
+        cache.put("model", image(1), classification);
+        cache.put("model", image(2), classification);
+        cache.get("model", image(1));
+        cache.put("model", image(3), classification);
+
+        assertSame(classification, cache.get("model", image(1)));
+        assertNull(cache.get("model", image(2)));
+        assertSame(classification, cache.get("model", image(3)));
+    }
+
+    /**
+     * @return Image with the given number of black pixels.
+     */
+    private static BitPackedImage image(int black) {
+        int[] pixels = new int[TOTAL_PIXELS];
+        Arrays.fill(pixels, WHITE);
+        Arrays.fill(pixels, 0, black, BLACK);
+        BitPackedImage image = new BitPackedImage();
+        image.pack(pixels);
+        return image;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+Copyright 2020 Trayan Momkov
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package info.trekto.zeca;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The sample images from the app assets decoded to ARGB pixels, the same form Bitmap.getPixels() gives on Android.
+ */
+class SampleImage {
+    final String name;
+    final int[] argb;
+    final int width;
+    final int height;
+
+    private SampleImage(String name, int[] argb, int width, int height) {
+        this.name = name;
+        this.argb = argb;
+        this.width = width;
+        this.height = height;
+    }
+
+    static File assets() {
+        return new File(System.getProperty("zeca.assets", "../app/src/main/assets"));
+    }
+
+    /**
+     * @return All PNG images of the assets sorted by name.
+     * @throws IOException If there are no images or an image cannot be read.
+     */
+    static List<SampleImage> loadAll() throws IOException {
+        File[] files = assets().listFiles();
+        if (files == null) {
+            throw new IOException("No assets in " + assets().getAbsolutePath());
+        }
+        Arrays.sort(files);
+        List<SampleImage> samples = new ArrayList<>();
+        for (File file : files) {
+            if (file.getName().endsWith(".png")) {
+                BufferedImage image = ImageIO.read(file);
+                int width = image.getWidth();
+                int height = image.getHeight();
+                int[] argb = image.getRGB(0, 0, width, height, null, 0, width);
+                samples.add(new SampleImage(file.getName(), argb, width, height));
+            }
+        }
+        if (samples.isEmpty()) {
+            throw new IOException("No sample images in " + assets().getAbsolutePath());
+        }
+        return samples;
+    }
+
+    /**
+     * @return Expected digit from the name (e8_... is an eight).
+     */
+    char expectedDigit() {
+        return name.charAt(1);
+    }
+}